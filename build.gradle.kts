@@ -14,10 +14,17 @@ val slf4jVersion = "1.7.26"
 val snakeYamlVersion = "1.25"
 val unboundidLdapSdkVersion = "4.0.11"
 
+// benchmarks
+val jmhCoreVersion = "1.22"
+
+// tests
+val junitVersion = "5.5.2"
+
 plugins {
     java
     application
     id("com.github.johnrengelman.shadow") version "5.2.0"
+    id("me.champeau.gradle.jmh") version "0.5.0"
 }
 
 tasks.wrapper {
@@ -51,6 +58,9 @@ dependencies {
     implementation("com.google.api-client:google-api-client:$googleApiClientVersion")
     implementation("com.google.apis:google-api-services-admin-directory:$googleDirectoryServiceVersion")
     implementation("com.google.auth:google-auth-library-oauth2-http:$googleOAuthHttpVersion")
+
+    // tests
+    testImplementation("org.junit.jupiter:junit-jupiter:$junitVersion")
 }
 
 java {
@@ -58,6 +68,18 @@ java {
     targetCompatibility = JavaVersion.VERSION_11
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
+// run with: ./gradlew jmh -Pjmh.include=UserMapperBenchmark
+jmh {
+    jmhVersion = jmhCoreVersion
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    (project.findProperty("jmh.include") as String?)?.let { include = listOf(it) }
+}
+
 application {
     mainClassName = "com.kvaster.gsuite.App"
 }
@@ -0,0 +1,188 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.UserExternalId;
+import com.kvaster.gsuite.GSuiteSyncConfig.Domain;
+import com.kvaster.gsuite.GSuiteSyncConfig.MappingConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import org.codehaus.commons.compiler.CompileException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per sync cost of user mapping: ldap entry conversion, diff with gsuite users and request construction.
+ * Each benchmark processes all users once, run with '-prof gc' to see allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class UserMapperBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int users;
+
+    @Param({"1", "5"})
+    int domainCount;
+
+    @Param({"0", "3"})
+    int aliasCount;
+
+    // percent of gsuite users which differ from ldap
+    @Param({"1"})
+    int changedPercent;
+
+    @Param({"false", "true"})
+    boolean useFingerprint;
+
+    private UserMapper mapper;
+    private List<SearchResultEntry> entries;
+    private List<LdapUser> ldapUsers;
+    private Map<String, User> gsuiteUsers;
+
+    private Msgs msgs;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, CompileException {
+        List<Domain> domains = new ArrayList<>();
+        for (int d = 0; d < domainCount; d++) {
+            domains.add(new Domain("domain" + d + ".example.com", "/unit" + d));
+        }
+
+        mapper = new UserMapper(domains, new MappingRules(new MappingConfig()), useFingerprint, "benchmark");
+
+        Random rnd = new Random(1);
+        entries = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            entries.add(createEntry(i, domains, rnd));
+        }
+
+        Msgs setupMsgs = new Msgs();
+        ldapUsers = new ArrayList<>(users);
+        for (SearchResultEntry e : entries) {
+            ldapUsers.add(mapper.getLdapUser(e, setupMsgs));
+        }
+
+        // gsuite users are passed through json in order to have the same shape as api output
+        // (external ids and phones are parsed as maps)
+        JsonFactory json = JacksonFactory.getDefaultInstance();
+        gsuiteUsers = new HashMap<>(users * 2);
+        for (LdapUser lu : ldapUsers) {
+            User u = mapper.createUser(lu, setupMsgs);
+            if (rnd.nextInt(100) < changedPercent) {
+                // user was changed in ldap after last sync
+                u.getName().setGivenName("Changed");
+                @SuppressWarnings("unchecked")
+                List<UserExternalId> eids = (List<UserExternalId>) u.getExternalIds();
+                eids.forEach((eid) -> eid.setValue("changed"));
+            }
+            // full name is filled by google
+            u.getName().setFullName(u.getName().getGivenName() + ' ' + u.getName().getFamilyName());
+            gsuiteUsers.put(lu.login, json.fromString(json.toString(u), User.class));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void resetMsgs() {
+        msgs = new Msgs();
+    }
+
+    @Benchmark
+    public void convertEntries(Blackhole bh) {
+        for (SearchResultEntry e : entries) {
+            bh.consume(mapper.getLdapUser(e, msgs));
+        }
+    }
+
+    @Benchmark
+    public void diff(Blackhole bh) {
+        for (LdapUser lu : ldapUsers) {
+            bh.consume(mapper.needSync(lu, gsuiteUsers.get(lu.login)));
+        }
+    }
+
+    @Benchmark
+    public void needAliasUpdate(Blackhole bh) {
+        for (LdapUser lu : ldapUsers) {
+            bh.consume(mapper.needAliasUpdate(lu, gsuiteUsers.get(lu.login)));
+        }
+    }
+
+    @Benchmark
+    public void getLastModify(Blackhole bh) {
+        for (User u : gsuiteUsers.values()) {
+            bh.consume(mapper.getLastModify(u));
+        }
+    }
+
+    @Benchmark
+    public void createUsers(Blackhole bh) {
+        for (LdapUser lu : ldapUsers) {
+            bh.consume(mapper.createUser(lu, msgs));
+        }
+    }
+
+    private SearchResultEntry createEntry(int i, List<Domain> domains, Random rnd) {
+        String uid = "user" + i;
+        Domain domain = domains.get(i % domains.size());
+        String login = uid + '@' + domain.getDomain();
+
+        List<Attribute> attrs = new ArrayList<>();
+        attrs.add(new Attribute("objectClass", "inetOrgPerson"));
+        attrs.add(new Attribute("uid", uid));
+        attrs.add(new Attribute("mail", login));
+        attrs.add(new Attribute("sn", "Surname" + i));
+        attrs.add(new Attribute("givenName", "Name" + i));
+        attrs.add(new Attribute("userPassword", "{SHA}" + sha1("password" + i)));
+        attrs.add(new Attribute("modifyTimestamp", String.format("2019%02d%02d120000Z", 1 + i % 12, 1 + i % 28)));
+
+        if (rnd.nextInt(2) == 0) {
+            attrs.add(new Attribute("mobile", "+1555" + (1000000 + i)));
+        }
+
+        if (aliasCount > 0) {
+            String[] aliases = new String[aliasCount];
+            for (int a = 0; a < aliasCount; a++) {
+                aliases[a] = uid + ".alias" + a + '@' + domains.get((i + a) % domains.size()).getDomain();
+            }
+            attrs.add(new Attribute("mailAlternateAddress", aliases));
+        }
+
+        return new SearchResultEntry("uid=" + uid + ",ou=people,dc=example,dc=com", attrs, new Control[0]);
+    }
+
+    private static String sha1(String str) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA1").digest(str.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
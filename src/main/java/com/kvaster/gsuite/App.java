@@ -1,6 +1,10 @@
 package com.kvaster.gsuite;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,11 +16,25 @@ public class App {
         try {
             LOG.info("Starting...");
 
+            String tenantsFile = System.getProperty("tenants");
+            if (tenantsFile != null) {
+                startTenants(ConfigLoader.loadConfig(new File(tenantsFile), TenantsConfig.class));
+                return;
+            }
+
             File configFile = new File(System.getProperty("config", "config.yml"));
 
             GSuiteSyncConfig config = ConfigLoader.loadConfig(configFile, GSuiteSyncConfig.class);
             GSuiteSyncService service = new GSuiteSyncService(config);
 
+            // dry run: write sync plan and exit
+            String planFile = System.getProperty("plan");
+            if (planFile != null) {
+                service.writePlan(new File(planFile));
+                service.stopService();
+                return;
+            }
+
             Runtime.getRuntime().addShutdownHook(new Thread(service::stopService));
             service.startService();
         } catch (Exception e) {
@@ -24,4 +42,48 @@ public class App {
             System.exit(1);
         }
     }
+
+    private static void startTenants(TenantsConfig config) throws Exception {
+        Set<String> names = new HashSet<>();
+        for (GSuiteSyncConfig tenant : config.getTenants()) {
+            if (tenant.getName() == null || !names.add(tenant.getName())) {
+                throw new IllegalArgumentException("Tenant name is missing or duplicated: " + tenant.getName());
+            }
+        }
+
+        SharedResources shared = new SharedResources(
+                config.getSchedulerThreads() > 0 ? config.getSchedulerThreads() : config.getTenants().size(),
+                config.getBackgroundThreads(), config.getMutationThreads(), config.getMailThreads(),
+                config.getMetricsConfig(), "tenant");
+
+        List<GSuiteSyncService> services = new ArrayList<>();
+        for (GSuiteSyncConfig tenant : config.getTenants()) {
+            services.add(new GSuiteSyncService(tenant, shared));
+        }
+
+        // dry run: write sync plan of each tenant and exit
+        String planFile = System.getProperty("plan");
+        if (planFile != null) {
+            File plan = new File(planFile);
+            for (int i = 0; i < services.size(); i++) {
+                services.get(i).writePlan(new File(plan.getParentFile(),
+                        config.getTenants().get(i).getName() + "-" + plan.getName()));
+                services.get(i).stopService();
+            }
+            shared.close();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            services.forEach(GSuiteSyncService::stopService);
+            shared.close();
+        }));
+
+        shared.start();
+
+        for (int i = 0; i < services.size(); i++) {
+            LOG.info("Starting tenant {}", config.getTenants().get(i).getName());
+            services.get(i).startService();
+        }
+    }
 }
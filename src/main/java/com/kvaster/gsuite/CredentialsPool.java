@@ -0,0 +1,223 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads google api calls across several service accounts, so sync is not limited by quota of one client.
+ * Each call goes to account with most headroom: configured per minute quota minus calls done in last minute.
+ * Account is picked for each attempt, account which got 429 is not used until Retry-After (or cooldown) passes,
+ * unless all accounts are cooling down. Call rejected with 429 is retried with other account without delay.
+ * <p>
+ * Access tokens are refreshed in background before they expire, so requests never wait for token refresh.
+ */
+public class CredentialsPool implements HttpRequestInitializer {
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialsPool.class);
+
+    private static final int WINDOW_SECONDS = 60;
+    private static final long COOLDOWN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long REFRESH_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static class Account {
+        final String name;
+        final GoogleCredentials credentials;
+
+        // calls per second within last window
+        final long[] calls = new long[WINDOW_SECONDS];
+        final long[] callSeconds = new long[WINDOW_SECONDS];
+
+        volatile long cooldownUntil;
+
+        Account(String name, GoogleCredentials credentials) {
+            this.name = name;
+            this.credentials = credentials;
+        }
+
+        synchronized void call(long second) {
+            int i = (int) (second % WINDOW_SECONDS);
+            if (callSeconds[i] != second) {
+                callSeconds[i] = second;
+                calls[i] = 0;
+            }
+            calls[i]++;
+        }
+
+        synchronized long recentCalls(long second) {
+            long total = 0;
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                if (second - callSeconds[i] < WINDOW_SECONDS) {
+                    total += calls[i];
+                }
+            }
+            return total;
+        }
+    }
+
+    private final List<Account> accounts = new ArrayList<>();
+    private final long queriesPerMinute;
+    private final long refreshBeforeMillis;
+    // used only by this pool, shut down on stop
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param names               - account names for logging
+     * @param credentials         - account credentials in the same order
+     * @param queriesPerMinute    - quota of one account, 0 - unknown, least loaded account is used
+     * @param refreshBeforeMillis - token is refreshed this time before expiration
+     * @param refresher           - executor for token refresh used only by this pool, it is shut down on stop
+     */
+    public CredentialsPool(
+            List<String> names, List<GoogleCredentials> credentials, long queriesPerMinute, long refreshBeforeMillis,
+            ScheduledExecutorService refresher
+    ) {
+        for (int i = 0; i < credentials.size(); i++) {
+            accounts.add(new Account(names.get(i), credentials.get(i)));
+        }
+
+        this.queriesPerMinute = queriesPerMinute;
+        this.refreshBeforeMillis = refreshBeforeMillis;
+        this.refresher = refresher;
+    }
+
+    public void start() {
+        accounts.forEach((a) -> refresher.schedule(() -> refresh(a), 0, TimeUnit.MILLISECONDS));
+    }
+
+    public void stop() {
+        refresher.shutdownNow();
+    }
+
+    private void refresh(Account account) {
+        long delay;
+
+        try {
+            account.credentials.refresh();
+
+            AccessToken token = account.credentials.getAccessToken();
+            delay = token == null || token.getExpirationTime() == null
+                    ? REFRESH_RETRY_MILLIS
+                    : token.getExpirationTime().getTime() - System.currentTimeMillis() - refreshBeforeMillis;
+
+            LOG.debug("Access token of {} is refreshed", account.name);
+        } catch (IOException e) {
+            LOG.warn("Error refreshing access token of {}", account.name, e);
+            delay = REFRESH_RETRY_MILLIS;
+        }
+
+        refresher.schedule(() -> refresh(account), Math.max(delay, REFRESH_RETRY_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void initialize(HttpRequest request) {
+        // account is picked on each attempt, so retry after 429 goes to other account
+        AtomicReference<Account> current = new AtomicReference<>();
+
+        request.setInterceptor((r) -> {
+            long now = System.currentTimeMillis();
+            Account account = pick(now);
+            current.set(account);
+
+            // batch http request itself does not use api quota
+            if (!r.getUrl().getRawPath().endsWith("/batch")) {
+                account.call(TimeUnit.MILLISECONDS.toSeconds(now));
+            }
+
+            authorize(account, r);
+        });
+
+        request.setUnsuccessfulResponseHandler((r, response, supportsRetry) -> {
+            Account account = current.get();
+            if (account == null) {
+                return false;
+            }
+
+            if (response.getStatusCode() == 429) {
+                long now = System.currentTimeMillis();
+                long cooldown = Math.max(GoogleRetry.retryAfterMillis(response), COOLDOWN_MILLIS);
+                account.cooldownUntil = now + cooldown;
+
+                LOG.info("Account {} is rate limited, it is not used for {} ms", account.name, cooldown);
+
+                // other account can take the call right away, otherwise retry waits for backoff
+                return supportsRetry && isAvailable(now);
+            }
+
+            if (response.getStatusCode() == 401) {
+                // token was revoked or expired earlier than expected, next attempt is authorized with new one
+                LOG.info("Access token of {} is rejected, refreshing", account.name);
+                account.credentials.refresh();
+                return supportsRetry;
+            }
+
+            return false;
+        });
+    }
+
+    private static void authorize(Account account, HttpRequest request) throws IOException {
+        if (!account.credentials.hasRequestMetadata()) {
+            return;
+        }
+
+        URI uri = request.getUrl() == null ? null : request.getUrl().toURI();
+        for (Map.Entry<String, List<String>> e : account.credentials.getRequestMetadata(uri).entrySet()) {
+            // replaces header of previous attempt, which could be authorized by other account
+            request.getHeaders().put(e.getKey(), new ArrayList<>(e.getValue()));
+        }
+    }
+
+    /**
+     * @return true if some account is not rate limited
+     */
+    private boolean isAvailable(long now) {
+        for (Account a : accounts) {
+            if (a.cooldownUntil <= now) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Account pick(long now) {
+        if (accounts.size() == 1) {
+            return accounts.get(0);
+        }
+
+        long second = TimeUnit.MILLISECONDS.toSeconds(now);
+
+        Account best = null;
+        long bestHeadroom = Long.MIN_VALUE;
+        Account coolest = null;
+
+        for (Account a : accounts) {
+            if (a.cooldownUntil > now) {
+                if (coolest == null || a.cooldownUntil < coolest.cooldownUntil) {
+                    coolest = a;
+                }
+                continue;
+            }
+
+            long headroom = queriesPerMinute - a.recentCalls(second);
+            if (headroom > bestHeadroom) {
+                best = a;
+                bestHeadroom = headroom;
+            }
+        }
+
+        // all accounts are rate limited - use the one which will be available first
+        return best != null ? best : coolest;
+    }
+}
@@ -0,0 +1,237 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.admin.directory.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes directory requests using batch api. Each operation is bound to user login,
+ * operations failed with temporary errors (rate limits, server errors) are re-queued into next batch.
+ * Batch http requests may be executed in parallel, but results are always returned in queue order.
+ * Failed http request fails only its own operations, all other batches are still executed.
+ */
+public class DirectoryBatch {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryBatch.class);
+
+    // google api limit for one batch request
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    public static class Op<T> {
+        private final String login;
+        private final AbstractGoogleJsonClientRequest<T> request;
+
+        private int attempts;
+        private T result;
+        private GoogleJsonError error;
+
+        private Op(String login, AbstractGoogleJsonClientRequest<T> request) {
+            this.login = login;
+            this.request = request;
+        }
+
+        private void queue(BatchRequest batch, GoogleApiMetrics metrics) throws IOException {
+            attempts++;
+            error = null;
+
+            String method = GoogleApiMetrics.describe(request.getRequestMethod(), request.getUriTemplate());
+
+            request.queue(batch, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(T t, HttpHeaders responseHeaders) {
+                    result = t;
+                    metrics.recordBatchCall(method, 200);
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                    error = e;
+                    metrics.recordBatchCall(method, e.getCode());
+                }
+            });
+        }
+
+        /**
+         * Http request of batch failed before this operation got its response.
+         */
+        private void fail(Throwable cause) {
+            if (result == null && error == null) {
+                error = new GoogleJsonError();
+                error.setCode(0);
+                error.setMessage(cause.toString());
+            }
+        }
+
+        private boolean needRetry() {
+            return error != null && attempts < MAX_ATTEMPTS && isTemporary(error);
+        }
+
+        public String getLogin() {
+            return login;
+        }
+
+        public T getResult() {
+            return result;
+        }
+
+        public GoogleJsonError getError() {
+            return error;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    private final Directory directory;
+    private final int batchSize;
+    private final Executor executor;
+    private final GoogleApiMetrics metrics;
+
+    private final List<Op<?>> ops = new ArrayList<>();
+
+    /**
+     * @param directory - directory service
+     * @param batchSize - max number of operations in one http request
+     * @param executor  - executor for batch http requests, null - execute in current thread
+     * @param metrics   - api metrics
+     */
+    public DirectoryBatch(Directory directory, int batchSize, Executor executor, GoogleApiMetrics metrics) {
+        this.directory = directory;
+        this.batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    public <T> Op<T> queue(String login, AbstractGoogleJsonClientRequest<T> request) {
+        Op<T> op = new Op<>(login, request);
+        ops.add(op);
+        return op;
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    /**
+     * Execute all queued operations. Batch is empty after execution.
+     *
+     * @return all operations in the order they were queued
+     * @throws IOException if interrupted - errors of single operations and failed http requests
+     *                     are reported within operations
+     */
+    public List<Op<?>> execute() throws IOException {
+        List<Op<?>> all = new ArrayList<>(ops);
+        ops.clear();
+
+        List<Op<?>> pending = all;
+        long retryDelay = RETRY_DELAY_MILLIS;
+
+        while (!pending.isEmpty()) {
+            List<FutureTask<Void>> tasks = new ArrayList<>();
+            List<List<Op<?>>> chunks = new ArrayList<>();
+
+            for (int from = 0; from < pending.size(); from += batchSize) {
+                List<Op<?>> chunk = pending.subList(from, Math.min(from + batchSize, pending.size()));
+
+                FutureTask<Void> task = new FutureTask<>(() -> {
+                    BatchRequest batch = directory.batch();
+                    for (Op<?> op : chunk) {
+                        op.queue(batch, metrics);
+                    }
+                    batch.execute();
+                    return null;
+                });
+
+                tasks.add(task);
+                chunks.add(chunk);
+
+                if (executor == null) {
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            }
+
+            await(tasks, chunks);
+
+            List<Op<?>> retry = new ArrayList<>();
+            for (Op<?> op : pending) {
+                if (op.needRetry()) {
+                    retry.add(op);
+                }
+            }
+
+            if (!retry.isEmpty()) {
+                LOG.info("Re-queueing {} failed operations", retry.size());
+
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+
+                retryDelay *= 2;
+            }
+
+            pending = retry;
+        }
+
+        return all;
+    }
+
+    private static void await(List<FutureTask<Void>> tasks, List<List<Op<?>>> chunks) throws IOException {
+        // wait for all tasks even on error - operations should not be modified after return
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                tasks.get(i).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof InterruptedIOException) {
+                    tasks.forEach((t) -> t.cancel(true));
+                    throw (InterruptedIOException) e.getCause();
+                }
+
+                LOG.error("Batch request failed", e.getCause());
+                chunks.get(i).forEach((op) -> op.fail(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                tasks.forEach((t) -> t.cancel(true));
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    static boolean isTemporary(GoogleJsonError error) {
+        int code = error.getCode();
+        if (code == 429 || code >= 500) {
+            return true;
+        }
+
+        if (code == 403 && error.getErrors() != null) {
+            return error.getErrors().stream().anyMatch((e) ->
+                    "rateLimitExceeded".equals(e.getReason())
+                            || "userRateLimitExceeded".equals(e.getReason())
+                            || "quotaExceeded".equals(e.getReason())
+            );
+        }
+
+        return false;
+    }
+}
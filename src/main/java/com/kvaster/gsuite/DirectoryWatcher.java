@@ -0,0 +1,270 @@
+package com.kvaster.gsuite;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.google.api.client.util.Base64;
+import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Channel;
+import com.google.api.services.admin.directory.model.User;
+import com.kvaster.gsuite.GSuiteSyncConfig.WatchConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives directory push notifications about changed gsuite users. Notification channels (one per event)
+ * are registered on start and renewed before expiry, new channels are registered before old ones are stopped,
+ * so no notification is lost. Notification is accepted only for known channel with valid token.
+ * <p>
+ * With local channel id nothing is registered in gsuite, only notifications for that channel are accepted,
+ * so receiver can be tested without google.
+ */
+public class DirectoryWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private static final String CHANNEL_ID_HEADER = "X-Goog-Channel-ID";
+    private static final String CHANNEL_TOKEN_HEADER = "X-Goog-Channel-Token";
+    private static final String RESOURCE_STATE_HEADER = "X-Goog-Resource-State";
+
+    private final Directory directory;
+    private final GoogleRetry googleRetry;
+    private final WatchConfig config;
+    private final ScheduledExecutorService scheduler;
+    // receives primary email of changed user, called from http server thread
+    private final Consumer<String> listener;
+
+    // server is bound on start, so service can be created next to running instance (e.g. to write sync plan)
+    private final HttpServer server;
+    private final InetSocketAddress address;
+    private final String token;
+
+    // channel id -> registered channel
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * @param scheduler    - channel renewal, it may wait for google retries
+     * @param httpExecutor - handles notification requests, may be shared by several receivers
+     */
+    public DirectoryWatcher(
+            Directory directory, GoogleRetry googleRetry, WatchConfig config, ScheduledExecutorService scheduler,
+            Executor httpExecutor, Consumer<String> listener
+    ) throws IOException, GeneralSecurityException {
+        this.directory = directory;
+        this.googleRetry = googleRetry;
+        this.config = config;
+        this.scheduler = scheduler;
+        this.listener = listener;
+
+        if (config.getLocalChannelId() != null && config.getToken() == null) {
+            throw new IllegalArgumentException("Token is required for local notification channel");
+        }
+
+        token = config.getToken() != null ? config.getToken() : randomToken();
+
+        address = config.getHost() == null
+                ? new InetSocketAddress(config.getPort())
+                : new InetSocketAddress(config.getHost(), config.getPort());
+
+        if (config.getKeystoreFile() != null) {
+            HttpsServer https = HttpsServer.create();
+            https.setHttpsConfigurator(new HttpsConfigurator(createSslContext()));
+            server = https;
+        } else {
+            server = HttpServer.create();
+        }
+
+        server.setExecutor(httpExecutor);
+
+        String path = URI.create(config.getAddress()).getPath();
+        server.createContext(path == null || path.isEmpty() ? "/" : path, (exchange) -> {
+            try {
+                exchange.sendResponseHeaders(handle(exchange), -1);
+            } catch (Exception e) {
+                LOG.error("Error handling notification", e);
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private static String randomToken() {
+        byte[] data = new byte[32];
+        new SecureRandom().nextBytes(data);
+        return Base64.encodeBase64URLSafeString(data);
+    }
+
+    private SSLContext createSslContext() throws IOException, GeneralSecurityException {
+        char[] password = config.getKeystorePassword() == null ? null : config.getKeystorePassword().toCharArray();
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream is = new FileInputStream(config.getKeystoreFile())) {
+            keyStore.load(is, password);
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+
+    /**
+     * @return http status
+     */
+    private int handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            return 405;
+        }
+
+        String channelId = exchange.getRequestHeaders().getFirst(CHANNEL_ID_HEADER);
+        String channelToken = exchange.getRequestHeaders().getFirst(CHANNEL_TOKEN_HEADER);
+
+        if (channelId == null || !channels.containsKey(channelId) || channelToken == null
+                || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                channelToken.getBytes(StandardCharsets.UTF_8))) {
+            LOG.warn("Rejected notification for unknown channel or with invalid token: {}", channelId);
+            return 403;
+        }
+
+        String state = exchange.getRequestHeaders().getFirst(RESOURCE_STATE_HEADER);
+        if ("sync".equals(state)) {
+            // channel is created
+            return 200;
+        }
+
+        User user;
+        try (InputStream is = exchange.getRequestBody()) {
+            user = directory.getJsonFactory().fromInputStream(is, User.class);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid notification body", e);
+            return 400;
+        }
+
+        if (user == null || user.getPrimaryEmail() == null) {
+            return 400;
+        }
+
+        LOG.debug("Gsuite user changed: {} ({})", user.getPrimaryEmail(), state);
+        listener.accept(user.getPrimaryEmail());
+
+        return 200;
+    }
+
+    public void start() throws IOException {
+        server.bind(address, 0);
+        server.start();
+        LOG.info("Notification receiver started at {}", server.getAddress());
+
+        if (config.getLocalChannelId() != null) {
+            channels.put(config.getLocalChannelId(), new Channel().setId(config.getLocalChannelId()));
+            LOG.warn("Local notification channel {}, channels are not registered in gsuite",
+                    config.getLocalChannelId());
+        } else {
+            scheduler.schedule(this::renew, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void stop() {
+        stopChannels(new ArrayList<>(channels.values()));
+        server.stop(0);
+    }
+
+    /**
+     * Register new channels and stop old ones, next renew is scheduled before new channels expire.
+     */
+    private void renew() {
+        List<Channel> old = new ArrayList<>(channels.values());
+        List<Channel> created = new ArrayList<>();
+
+        try {
+            long expiration = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getChannelTtlSeconds());
+
+            for (String event : config.getEvents()) {
+                Channel channel = new Channel()
+                        .setId(UUID.randomUUID().toString())
+                        .setType("web_hook")
+                        .setAddress(config.getAddress())
+                        .setToken(token)
+                        .setExpiration(expiration);
+
+                // channel should be known before google sends sync notification
+                channels.put(channel.getId(), channel);
+                created.add(channel);
+
+                Channel result = googleRetry.execute(directory.users().watch(channel)
+                        .setCustomer("my_customer")
+                        .setEvent(event));
+
+                channel.setResourceId(result.getResourceId());
+                if (result.getExpiration() != null) {
+                    channel.setExpiration(result.getExpiration());
+                }
+
+                LOG.info("Registered notification channel {} for {} events", channel.getId(), event);
+            }
+        } catch (Exception e) {
+            LOG.error("Error registering notification channels", e);
+
+            // old channels are kept until they expire
+            stopChannels(created);
+
+            scheduler.schedule(this::renew, config.getRetryDelaySeconds(), TimeUnit.SECONDS);
+            return;
+        }
+
+        stopChannels(old);
+
+        long expiration = created.stream().mapToLong(Channel::getExpiration).min().orElse(Long.MAX_VALUE);
+        long delay = expiration - System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.getRenewBeforeSeconds());
+        scheduler.schedule(this::renew, Math.max(delay, TimeUnit.SECONDS.toMillis(config.getRetryDelaySeconds())),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void stopChannels(List<Channel> list) {
+        for (Channel channel : list) {
+            channels.remove(channel.getId());
+
+            if (channel.getResourceId() == null) {
+                continue;
+            }
+
+            try {
+                directory.channels().stop(new Channel()
+                        .setId(channel.getId())
+                        .setResourceId(channel.getResourceId())).execute();
+            } catch (Exception e) {
+                LOG.warn("Error stopping notification channel {}", channel.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.kvaster.gsuite;
+
+import java.util.List;
+
+import com.kvaster.gsuite.GSuiteSyncConfig.Domain;
+
+/**
+ * Finds controlled domain of email address by its part after last '@'. Lookup is done with open addressing
+ * hash table directly over mail characters, so it does not allocate and does not depend on domain count.
+ */
+class DomainRouter {
+    private final Domain[] table;
+    private final int mask;
+
+    DomainRouter(List<Domain> domains) {
+        int size = Integer.highestOneBit(Math.max(domains.size(), 1) * 2) * 2;
+        table = new Domain[size];
+        mask = size - 1;
+
+        for (Domain d : domains) {
+            String name = d.getDomain();
+            int idx = hash(name, 0, name.length()) & mask;
+            while (table[idx] != null) {
+                if (table[idx].getDomain().equals(name)) {
+                    throw new IllegalArgumentException("Duplicate domain: " + name);
+                }
+                idx = (idx + 1) & mask;
+            }
+            table[idx] = d;
+        }
+    }
+
+    /**
+     * @return domain of email or null if email is not in controlled domain
+     */
+    Domain route(String mail) {
+        int from = mail.lastIndexOf('@') + 1;
+        if (from == 0) {
+            return null;
+        }
+
+        int len = mail.length() - from;
+        int idx = hash(mail, from, len) & mask;
+
+        Domain d;
+        while ((d = table[idx]) != null) {
+            String name = d.getDomain();
+            if (name.length() == len && mail.regionMatches(from, name, 0, len)) {
+                return d;
+            }
+            idx = (idx + 1) & mask;
+        }
+
+        return null;
+    }
+
+    private static int hash(String s, int from, int len) {
+        int h = 0;
+        for (int i = from, end = from + len; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        // spread high bits, table index uses only low bits
+        return h ^ (h >>> 16);
+    }
+}
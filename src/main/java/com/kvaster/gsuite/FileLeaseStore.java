@@ -0,0 +1,122 @@
+package com.kvaster.gsuite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Leases in shared directory, one file per lease. File is locked while lease is checked and updated,
+ * directory should be on file system with working locks (local or nfs with lock manager).
+ * <p>
+ * File content: key, owner and expiration time on separate lines. Released lease is kept with zero expiration,
+ * locked file is never deleted.
+ */
+public class FileLeaseStore implements LeaseStore {
+    private static final String SUFFIX = ".lease";
+
+    private final File dir;
+
+    public FileLeaseStore(File dir) throws IOException {
+        this.dir = dir;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create lease directory: " + dir);
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX);
+    }
+
+    @Override
+    public List<Lease> list(String prefix) throws IOException {
+        List<Lease> leases = new ArrayList<>();
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                Lease lease = update(f, null);
+                if (lease != null && lease.key.startsWith(prefix)) {
+                    leases.add(lease);
+                }
+            }
+        }
+
+        return leases;
+    }
+
+    @Override
+    public boolean acquire(String key, String owner, long expiresMillis) throws IOException {
+        Lease lease = update(file(key), (current) -> current == null
+                || !current.isValid(System.currentTimeMillis())
+                || owner.equals(current.owner)
+                ? new Lease(key, owner, expiresMillis)
+                : null);
+
+        return lease != null && owner.equals(lease.owner);
+    }
+
+    @Override
+    public void release(String key, String owner) throws IOException {
+        File f = file(key);
+        if (f.exists()) {
+            update(f, (current) -> current != null && owner.equals(current.owner) ? new Lease(key, owner, 0) : null);
+        }
+    }
+
+    private interface Update {
+        /**
+         * @return new lease or null to keep current one
+         */
+        Lease apply(Lease current);
+    }
+
+    /**
+     * @param update - null to read only
+     * @return lease stored in file after update
+     */
+    private static Lease update(File f, Update update) throws IOException {
+        // file locks are held by process, concurrent locking of the same file in one jvm fails
+        synchronized (FileLeaseStore.class) {
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                FileLock lock = raf.getChannel().lock();
+                try {
+                    byte[] data = new byte[(int) raf.length()];
+                    raf.readFully(data);
+                    Lease current = parse(new String(data, StandardCharsets.UTF_8));
+
+                    Lease lease = update == null ? null : update.apply(current);
+                    if (lease == null) {
+                        return current;
+                    }
+
+                    raf.setLength(0);
+                    raf.write((lease.key + '\n' + lease.owner + '\n' + lease.expiresMillis + '\n')
+                            .getBytes(StandardCharsets.UTF_8));
+                    raf.getFD().sync();
+
+                    return lease;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static Lease parse(String content) {
+        String[] lines = content.split("\n");
+        if (lines.length < 3) {
+            return null;
+        }
+
+        try {
+            return new Lease(lines[0], lines[1], Long.parseLong(lines[2].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package com.kvaster.gsuite;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import com.fasterxml.jackson.annotation.JsonFormat;
+
 class GSuiteSyncConfig {
     public static class Domain {
         private String domain;
@@ -29,11 +35,67 @@ class GSuiteSyncConfig {
 
     public static class GSuiteConfig {
         private List<Domain> domains;
-        private File credentialsFile;
+        // one or several service accounts, calls are spread across accounts by quota headroom
+        @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+        private List<File> credentialsFile;
         private String delegatedUser;
         private boolean reportUncontrolled = true;
 
         private int syncRetryDelaySeconds = 600;
+        // isolated change is synced immediately, changes in bursts are coalesced:
+        // sync waits for quiet window without changes, window is doubled on each change up to max quiet,
+        // but sync is never delayed more than max wait
+        private long syncQuietMillis = TimeUnit.SECONDS.toMillis(1);
+        private long syncMaxQuietMillis = TimeUnit.SECONDS.toMillis(30);
+        private long syncMaxWaitMillis = TimeUnit.MINUTES.toMillis(2);
+        // some delay on startup - to be sure all initial changes will be received
+        private long syncStartupDelayMillis = TimeUnit.SECONDS.toMillis(10);
+        private int batchSize = 100;
+        private int threads = 4;
+        private int listPageSize = 500;
+        // user fields fetched on listing, empty list - fetch everything
+        private List<String> listFields = Arrays.asList(
+                "primaryEmail", "name", "aliases", "orgUnitPath", "includeInGlobalAddressList",
+                "phones", "externalIds", "recoveryEmail", "recoveryPhone"
+        );
+        // snapshot of gsuite users state, used instead of full listing for first sync after restart
+        private File snapshotFile;
+        private int snapshotVerifyDelaySeconds = 300;
+        // compare users by fingerprint of mapped fields instead of field by field,
+        // changes made directly in gsuite are not detected in this mode
+        private boolean useFingerprint = false;
+        // secret key of fingerprint hmac, required for fingerprint compare: fingerprint covers password hash
+        // and is readable by gsuite admins, so it should not be computable without the key
+        private String fingerprintKey;
+        // diff sorted ldap and gsuite users with external sort and execute changes while merging,
+        // memory does not depend on number of users, snapshot is not used in this mode
+        private boolean streamingDiff = false;
+        // users of each side kept in memory before spilling sorted run to temporary file
+        private int diffMemoryUsers = 100000;
+        // directory for spilled runs (they contain user data), null - default temporary directory
+        private File diffTmpDir;
+        // failed google call is retried with jittered exponential backoff (Retry-After is respected)
+        // until max elapsed time, 0 - disable retries
+        private long retryInitialDelayMillis = 500;
+        private long retryMaxDelayMillis = TimeUnit.SECONDS.toMillis(30);
+        private long retryMaxElapsedMillis = TimeUnit.MINUTES.toMillis(2);
+        // progress of sync run, interrupted or failed sync is continued without listing and diff
+        private File journalFile;
+        // users failed by sync are retried one by one with own exponential backoff, 0 attempts - full sync is retried
+        private int userRetryAttempts = 5;
+        private long userRetryDelaySeconds = 60;
+        private long userRetryMaxDelaySeconds = TimeUnit.HOURS.toSeconds(1);
+        // google api http transport: net (HttpURLConnection) or jdk (java.net.http client with http/2)
+        private String httpTransport = "net";
+        // settings of jdk transport
+        private boolean http2 = true;
+        private long httpConnectTimeoutMillis = TimeUnit.SECONDS.toMillis(20);
+        private int httpPoolSize;
+        private long httpKeepAliveSeconds = TimeUnit.MINUTES.toSeconds(5);
+        // directory api quota of one service account, 0 - unknown (least loaded account is used)
+        private long accountQueriesPerMinute = 2400;
+        // access tokens are refreshed in background, client refreshes token itself within 5 minutes of expiry
+        private long tokenRefreshBeforeSeconds = TimeUnit.MINUTES.toSeconds(10);
 
         protected GSuiteConfig() {
             // for deserialization
@@ -41,23 +103,81 @@ class GSuiteSyncConfig {
 
         public GSuiteConfig(
                 List<Domain> domains,
-                File credentialsFile,
+                List<File> credentialsFile,
                 String delegatedUser,
                 boolean reportUncontrolled,
-                int syncRetryDelaySeconds
+                int syncRetryDelaySeconds,
+                long syncQuietMillis,
+                long syncMaxQuietMillis,
+                long syncMaxWaitMillis,
+                long syncStartupDelayMillis,
+                int batchSize,
+                int threads,
+                int listPageSize,
+                List<String> listFields,
+                File snapshotFile,
+                int snapshotVerifyDelaySeconds,
+                boolean useFingerprint,
+                String fingerprintKey,
+                boolean streamingDiff,
+                int diffMemoryUsers,
+                File diffTmpDir,
+                long retryInitialDelayMillis,
+                long retryMaxDelayMillis,
+                long retryMaxElapsedMillis,
+                File journalFile,
+                int userRetryAttempts,
+                long userRetryDelaySeconds,
+                long userRetryMaxDelaySeconds,
+                String httpTransport,
+                boolean http2,
+                long httpConnectTimeoutMillis,
+                int httpPoolSize,
+                long httpKeepAliveSeconds,
+                long accountQueriesPerMinute,
+                long tokenRefreshBeforeSeconds
         ) {
             this.domains = domains;
             this.credentialsFile = credentialsFile;
             this.delegatedUser = delegatedUser;
             this.reportUncontrolled = reportUncontrolled;
             this.syncRetryDelaySeconds = syncRetryDelaySeconds;
+            this.syncQuietMillis = syncQuietMillis;
+            this.syncMaxQuietMillis = syncMaxQuietMillis;
+            this.syncMaxWaitMillis = syncMaxWaitMillis;
+            this.syncStartupDelayMillis = syncStartupDelayMillis;
+            this.batchSize = batchSize;
+            this.threads = threads;
+            this.listPageSize = listPageSize;
+            this.listFields = listFields;
+            this.snapshotFile = snapshotFile;
+            this.snapshotVerifyDelaySeconds = snapshotVerifyDelaySeconds;
+            this.useFingerprint = useFingerprint;
+            this.fingerprintKey = fingerprintKey;
+            this.streamingDiff = streamingDiff;
+            this.diffMemoryUsers = diffMemoryUsers;
+            this.diffTmpDir = diffTmpDir;
+            this.retryInitialDelayMillis = retryInitialDelayMillis;
+            this.retryMaxDelayMillis = retryMaxDelayMillis;
+            this.retryMaxElapsedMillis = retryMaxElapsedMillis;
+            this.journalFile = journalFile;
+            this.userRetryAttempts = userRetryAttempts;
+            this.userRetryDelaySeconds = userRetryDelaySeconds;
+            this.userRetryMaxDelaySeconds = userRetryMaxDelaySeconds;
+            this.httpTransport = httpTransport;
+            this.http2 = http2;
+            this.httpConnectTimeoutMillis = httpConnectTimeoutMillis;
+            this.httpPoolSize = httpPoolSize;
+            this.httpKeepAliveSeconds = httpKeepAliveSeconds;
+            this.accountQueriesPerMinute = accountQueriesPerMinute;
+            this.tokenRefreshBeforeSeconds = tokenRefreshBeforeSeconds;
         }
 
         public List<Domain> getDomains() {
             return domains;
         }
 
-        public File getCredentialsFile() {
+        public List<File> getCredentialsFile() {
             return credentialsFile;
         }
 
@@ -72,6 +192,122 @@ class GSuiteSyncConfig {
         public int getSyncRetryDelaySeconds() {
             return syncRetryDelaySeconds;
         }
+
+        public long getSyncQuietMillis() {
+            return syncQuietMillis;
+        }
+
+        public long getSyncMaxQuietMillis() {
+            return syncMaxQuietMillis;
+        }
+
+        public long getSyncMaxWaitMillis() {
+            return syncMaxWaitMillis;
+        }
+
+        public long getSyncStartupDelayMillis() {
+            return syncStartupDelayMillis;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getListPageSize() {
+            return listPageSize;
+        }
+
+        public List<String> getListFields() {
+            return listFields;
+        }
+
+        public File getSnapshotFile() {
+            return snapshotFile;
+        }
+
+        public int getSnapshotVerifyDelaySeconds() {
+            return snapshotVerifyDelaySeconds;
+        }
+
+        public boolean getUseFingerprint() {
+            return useFingerprint;
+        }
+
+        public String getFingerprintKey() {
+            return fingerprintKey;
+        }
+
+        public boolean getStreamingDiff() {
+            return streamingDiff;
+        }
+
+        public int getDiffMemoryUsers() {
+            return diffMemoryUsers;
+        }
+
+        public File getDiffTmpDir() {
+            return diffTmpDir;
+        }
+
+        public long getRetryInitialDelayMillis() {
+            return retryInitialDelayMillis;
+        }
+
+        public long getRetryMaxDelayMillis() {
+            return retryMaxDelayMillis;
+        }
+
+        public long getRetryMaxElapsedMillis() {
+            return retryMaxElapsedMillis;
+        }
+
+        public File getJournalFile() {
+            return journalFile;
+        }
+
+        public int getUserRetryAttempts() {
+            return userRetryAttempts;
+        }
+
+        public long getUserRetryDelaySeconds() {
+            return userRetryDelaySeconds;
+        }
+
+        public long getUserRetryMaxDelaySeconds() {
+            return userRetryMaxDelaySeconds;
+        }
+
+        public String getHttpTransport() {
+            return httpTransport;
+        }
+
+        public boolean getHttp2() {
+            return http2;
+        }
+
+        public long getHttpConnectTimeoutMillis() {
+            return httpConnectTimeoutMillis;
+        }
+
+        public int getHttpPoolSize() {
+            return httpPoolSize;
+        }
+
+        public long getHttpKeepAliveSeconds() {
+            return httpKeepAliveSeconds;
+        }
+
+        public long getAccountQueriesPerMinute() {
+            return accountQueriesPerMinute;
+        }
+
+        public long getTokenRefreshBeforeSeconds() {
+            return tokenRefreshBeforeSeconds;
+        }
     }
 
     public static class LdapConfig {
@@ -83,6 +319,15 @@ class GSuiteSyncConfig {
         private String bindDn;
         private String bindPw;
         private long reconnectDelayMillis = TimeUnit.SECONDS.toMillis(5);
+        private boolean useMirror = true;
+        private int pageSize = 500;
+        // content sync cookie and mirror are stored in this file, so restart continues from last state
+        private File stateFile;
+        private long stateSaveDelayMillis = TimeUnit.SECONDS.toMillis(5);
+        // connection pool for searches, 0 - new connection for each search
+        private int poolSize = 2;
+        private long poolHealthCheckIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+        private long poolMaxConnectionAgeMillis = TimeUnit.MINUTES.toMillis(30);
 
         protected LdapConfig() {
             // for deserialization
@@ -90,7 +335,9 @@ class GSuiteSyncConfig {
 
         public LdapConfig(
                 String url, String loginDn, String loginFilter, String groupDn,
-                String groupFilter, String bindDn, String bindPw, long reconnectDelayMillis
+                String groupFilter, String bindDn, String bindPw, long reconnectDelayMillis,
+                boolean useMirror, int pageSize, File stateFile, long stateSaveDelayMillis,
+                int poolSize, long poolHealthCheckIntervalMillis, long poolMaxConnectionAgeMillis
         ) {
             this.url = url;
             this.loginDn = loginDn;
@@ -100,6 +347,13 @@ class GSuiteSyncConfig {
             this.bindDn = bindDn;
             this.bindPw = bindPw;
             this.reconnectDelayMillis = reconnectDelayMillis;
+            this.useMirror = useMirror;
+            this.pageSize = pageSize;
+            this.stateFile = stateFile;
+            this.stateSaveDelayMillis = stateSaveDelayMillis;
+            this.poolSize = poolSize;
+            this.poolHealthCheckIntervalMillis = poolHealthCheckIntervalMillis;
+            this.poolMaxConnectionAgeMillis = poolMaxConnectionAgeMillis;
         }
 
         public String getUrl() {
@@ -133,6 +387,34 @@ class GSuiteSyncConfig {
         public long getReconnectDelayMillis() {
             return reconnectDelayMillis;
         }
+
+        public boolean getUseMirror() {
+            return useMirror;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        public File getStateFile() {
+            return stateFile;
+        }
+
+        public long getStateSaveDelayMillis() {
+            return stateSaveDelayMillis;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public long getPoolHealthCheckIntervalMillis() {
+            return poolHealthCheckIntervalMillis;
+        }
+
+        public long getPoolMaxConnectionAgeMillis() {
+            return poolMaxConnectionAgeMillis;
+        }
     }
 
     public static class MailConfig {
@@ -203,18 +485,294 @@ class GSuiteSyncConfig {
         }
     }
 
+    public static class MetricsConfig {
+        private String host;
+        // 0 - metrics endpoint is disabled
+        private int port;
+
+        protected MetricsConfig() {
+            // for deserialization
+        }
+
+        public MetricsConfig(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    public static class ClusterConfig {
+        // lease store: file or ldap, null - cluster mode is disabled, all domains are synced by this node
+        private String leaseStore;
+        // unique node name, host name and process id by default
+        private String node;
+        // shared directory for file store
+        private File leaseDir;
+        // parent entry of lease entries for ldap store, ldap bind user is used if lease bind dn is not set
+        private String leaseDn;
+        private String leaseBindDn;
+        private String leaseBindPw;
+        // domain is taken over by other node when lease is not renewed for this time
+        private long leaseTtlSeconds = 60;
+        private long renewIntervalSeconds = 15;
+
+        protected ClusterConfig() {
+            // for deserialization
+        }
+
+        public ClusterConfig(
+                String leaseStore, String node, File leaseDir, String leaseDn, String leaseBindDn, String leaseBindPw,
+                long leaseTtlSeconds, long renewIntervalSeconds
+        ) {
+            this.leaseStore = leaseStore;
+            this.node = node;
+            this.leaseDir = leaseDir;
+            this.leaseDn = leaseDn;
+            this.leaseBindDn = leaseBindDn;
+            this.leaseBindPw = leaseBindPw;
+            this.leaseTtlSeconds = leaseTtlSeconds;
+            this.renewIntervalSeconds = renewIntervalSeconds;
+        }
+
+        public String getLeaseStore() {
+            return leaseStore;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public File getLeaseDir() {
+            return leaseDir;
+        }
+
+        public String getLeaseDn() {
+            return leaseDn;
+        }
+
+        public String getLeaseBindDn() {
+            return leaseBindDn;
+        }
+
+        public String getLeaseBindPw() {
+            return leaseBindPw;
+        }
+
+        public long getLeaseTtlSeconds() {
+            return leaseTtlSeconds;
+        }
+
+        public long getRenewIntervalSeconds() {
+            return renewIntervalSeconds;
+        }
+    }
+
+    public static class WatchConfig {
+        private String host;
+        // 0 - webhook receiver and push notifications are disabled
+        private int port;
+        // public https url registered in notification channels, request path of receiver is taken from it
+        private String address;
+        // receiver serves https with this keystore (pkcs12 or jks), otherwise plain http behind tls proxy
+        private File keystoreFile;
+        private String keystorePassword;
+        // channel token checked on each notification, random on each start if not set
+        private String token;
+        // local testing: only this channel id is accepted and nothing is registered in gsuite, token is required
+        private String localChannelId;
+        // one channel is registered per event
+        private List<String> events = Arrays.asList("add", "delete", "update", "undelete");
+        private long channelTtlSeconds = TimeUnit.HOURS.toSeconds(6);
+        private long renewBeforeSeconds = TimeUnit.MINUTES.toSeconds(10);
+        private long retryDelaySeconds = 60;
+        // notifications are coalesced, changed users are synced together
+        private long syncDelayMillis = 2000;
+        // notifications about users changed by this node within this time are ignored
+        private long selfChangeMillis = TimeUnit.MINUTES.toMillis(1);
+
+        protected WatchConfig() {
+            // for deserialization
+        }
+
+        public WatchConfig(
+                String host, int port, String address, File keystoreFile, String keystorePassword, String token,
+                String localChannelId, List<String> events, long channelTtlSeconds, long renewBeforeSeconds,
+                long retryDelaySeconds, long syncDelayMillis, long selfChangeMillis
+        ) {
+            this.host = host;
+            this.port = port;
+            this.address = address;
+            this.keystoreFile = keystoreFile;
+            this.keystorePassword = keystorePassword;
+            this.token = token;
+            this.localChannelId = localChannelId;
+            this.events = events;
+            this.channelTtlSeconds = channelTtlSeconds;
+            this.renewBeforeSeconds = renewBeforeSeconds;
+            this.retryDelaySeconds = retryDelaySeconds;
+            this.syncDelayMillis = syncDelayMillis;
+            this.selfChangeMillis = selfChangeMillis;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public File getKeystoreFile() {
+            return keystoreFile;
+        }
+
+        public String getKeystorePassword() {
+            return keystorePassword;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getLocalChannelId() {
+            return localChannelId;
+        }
+
+        public List<String> getEvents() {
+            return events;
+        }
+
+        public long getChannelTtlSeconds() {
+            return channelTtlSeconds;
+        }
+
+        public long getRenewBeforeSeconds() {
+            return renewBeforeSeconds;
+        }
+
+        public long getRetryDelaySeconds() {
+            return retryDelaySeconds;
+        }
+
+        public long getSyncDelayMillis() {
+            return syncDelayMillis;
+        }
+
+        public long getSelfChangeMillis() {
+            return selfChangeMillis;
+        }
+    }
+
+    public static class MappingConfig {
+        // java expressions compiled on startup, available variables:
+        // entry (com.unboundid.ldap.sdk.Entry), domain and orgUnit (of user's login domain)
+        private String givenName = "entry.getAttributeValue(\"givenName\")";
+        private String familyName = "entry.getAttributeValue(\"sn\")";
+        private String password = "entry.getAttributeValue(\"userPassword\")";
+        private String phone = "entry.getAttributeValue(\"mobile\")";
+        private String orgUnit = "orgUnit";
+        private String employeeType = "entry.getAttributeValue(\"employeeType\")";
+        // employee type -> sync, hidden, failed or skip, users with unknown types are skipped
+        private Map<String, String> employeeTypes = new LinkedHashMap<>(Map.of(
+                "", "sync",
+                "hidden", "hidden",
+                "failed", "failed",
+                "service", "skip"
+        ));
+        // ldap attributes used by expressions in addition to ones found in 'getAttribute*("name")' calls
+        private List<String> attributes = Collections.emptyList();
+
+        protected MappingConfig() {
+            // for deserialization
+        }
+
+        public MappingConfig(
+                String givenName, String familyName, String password, String phone, String orgUnit,
+                String employeeType, Map<String, String> employeeTypes, List<String> attributes
+        ) {
+            this.givenName = givenName;
+            this.familyName = familyName;
+            this.password = password;
+            this.phone = phone;
+            this.orgUnit = orgUnit;
+            this.employeeType = employeeType;
+            this.employeeTypes = employeeTypes;
+            this.attributes = attributes;
+        }
+
+        public String getGivenName() {
+            return givenName;
+        }
+
+        public String getFamilyName() {
+            return familyName;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getPhone() {
+            return phone;
+        }
+
+        public String getOrgUnit() {
+            return orgUnit;
+        }
+
+        public String getEmployeeType() {
+            return employeeType;
+        }
+
+        public Map<String, String> getEmployeeTypes() {
+            return employeeTypes;
+        }
+
+        public List<String> getAttributes() {
+            return attributes;
+        }
+    }
+
+    // tenant name for logs and reports in multi-tenant mode
+    private String name;
     private GSuiteConfig gsuite;
     private LdapConfig ldap;
     private MailConfig mail;
+    private MetricsConfig metrics = new MetricsConfig();
+    private MappingConfig mapping = new MappingConfig();
+    private WatchConfig watch = new WatchConfig();
+    private ClusterConfig cluster = new ClusterConfig();
 
     protected GSuiteSyncConfig() {
         // for deserialization
     }
 
-    public GSuiteSyncConfig(GSuiteConfig gsuiteConfig, LdapConfig ldapConfig, MailConfig mailConfig) {
+    public GSuiteSyncConfig(
+            GSuiteConfig gsuiteConfig, LdapConfig ldapConfig, MailConfig mailConfig, MetricsConfig metricsConfig,
+            MappingConfig mappingConfig, WatchConfig watchConfig, ClusterConfig clusterConfig
+    ) {
         this.gsuite = gsuiteConfig;
         this.ldap = ldapConfig;
         this.mail = mailConfig;
+        this.metrics = metricsConfig;
+        this.mapping = mappingConfig;
+        this.watch = watchConfig;
+        this.cluster = clusterConfig;
+    }
+
+    public String getName() {
+        return name;
     }
 
     public GSuiteConfig getGsuiteConfig() {
@@ -228,4 +786,20 @@ class GSuiteSyncConfig {
     public MailConfig getMailConfig() {
         return mail;
     }
+
+    public MetricsConfig getMetricsConfig() {
+        return metrics;
+    }
+
+    public MappingConfig getMappingConfig() {
+        return mapping;
+    }
+
+    public WatchConfig getWatchConfig() {
+        return watch;
+    }
+
+    public ClusterConfig getClusterConfig() {
+        return cluster;
+    }
 }
@@ -1,133 +1,380 @@
 package com.kvaster.gsuite;
 
+import java.io.File;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.util.Base64;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.Strings;
 import com.google.api.services.admin.directory.Directory;
-import com.google.api.services.admin.directory.model.Alias;
-import com.google.api.services.admin.directory.model.Aliases;
 import com.google.api.services.admin.directory.model.User;
-import com.google.api.services.admin.directory.model.UserExternalId;
-import com.google.api.services.admin.directory.model.UserName;
-import com.google.api.services.admin.directory.model.UserPhone;
 import com.google.api.services.admin.directory.model.Users;
-import com.google.common.io.BaseEncoding;
-import com.kvaster.gsuite.GSuiteSyncConfig.Domain;
 import com.kvaster.gsuite.GSuiteSyncConfig.LdapConfig;
 import com.kvaster.gsuite.GSuiteSyncConfig.MailConfig;
+import com.kvaster.utils.concurrent.FairExecutor;
 import com.kvaster.utils.email.CommonsEmailFactory;
 import com.kvaster.utils.email.Email;
+import com.kvaster.utils.io.ExternalSorter;
+import com.kvaster.utils.metrics.MetricsRegistry;
 import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.AsyncRequestID;
 import com.unboundid.ldap.sdk.AsyncSearchResultListener;
 import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
 import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.IntermediateResponseListener;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
 import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
 import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
 import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
 import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
 import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class GSuiteSyncService {
     private static final Logger LOG = LoggerFactory.getLogger(GSuiteSyncService.class);
 
-    // we need to add some version to 'last update' field in order to be able
-    // to do full resync in case of significant code changess
-    private static final String SYNC_VERSION = "1";
-
-    private static final String SHA_PREFIX = "{SHA}";
+    // max logins in one ldap filter when users are searched by login
+    private static final int LOGIN_FILTER_SIZE = 100;
 
     private final Directory directory;
+    private final CredentialsPool credentialsPool;
+    private final GoogleRetry googleRetry;
     private final LdapHelper ldapHelper;
 
-    private final List<Domain> domains;
+    private final UserMapper mapper;
 
     private final LdapConfig ldapConfig;
+    private final Filter ldapFilter;
+    // pool for searches, persistent search always uses own connection, pool may be shared with other tenants
+    private final LDAPConnectionPool ldapPool;
+    private final LdapMirror ldapMirror;
+    private final LdapState ldapState;
+    private final AtomicBoolean ldapStateSaveScheduled = new AtomicBoolean();
 
     private final CommonsEmailFactory emailFactory;
+    // tenant name in report subject, null for single tenant
+    private final String tenant;
+    // tenant name or "sync", used for lanes and metrics
+    private final String name;
     private final String emailFrom;
     private final List<String> emailTo;
 
-    private final ScheduledThreadPoolExecutor scheduler;
-
-    private final PasswordGenerator passwordGenerator = new PasswordGenerator();
-
-    private final boolean reportUncontrolled;
-    private final long retrySyncInMillis;
+    // threads and connections, shared with other tenants in multi-tenant mode
+    private final SharedResources shared;
+    private final boolean ownShared;
+    // service tasks are executed one after another
+    private final FairExecutor.Lane scheduler;
+    private final SyncScheduler syncScheduler;
+    // executes batch requests in parallel, null if only one thread is configured
+    private final ExecutorService mutationExecutor;
+
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final GoogleApiMetrics apiMetrics = new GoogleApiMetrics(metrics);
+    private final MetricsRegistry.Summary syncPhaseTime = metrics.summary("gsuite_sync_phase_seconds",
+            "Time spent in sync phases", "phase");
+    private final MetricsRegistry.Counter syncCount = metrics.counter("gsuite_syncs_total",
+            "Finished syncs", "result");
+    private final MetricsRegistry.Counter syncEvents = metrics.counter("gsuite_sync_change_events_total",
+            "Ldap change events absorbed by syncs");
+    private final MetricsRegistry.Counter gsuiteNotifications = metrics.counter("gsuite_user_notifications_total",
+            "Gsuite user change notifications", "controlled");
+    private final MetricsRegistry.Counter ldapReconnects = metrics.counter("gsuite_ldap_listener_connects_total",
+            "Ldap listener connect attempts", "result");
+
+    private final UserDiff userDiff;
+    private final int batchSize;
+    private final int threads;
+    private final boolean streamingDiff;
+    private final int diffMemoryUsers;
+    private final File diffTmpDir;
+    private final int listPageSize;
+    private final String listFields;
+
+    private final SyncJournal syncJournal;
+    // users failed by sync, null - whole sync is retried
+    private final RetryQueue retryQueue;
+    private ScheduledFuture<?> userRetryTask;
+
+    // push notifications about users changed in gsuite, may be null
+    private final DirectoryWatcher directoryWatcher;
+    // channel renewal waits for google retries, so it is not executed by scheduler lane
+    private final FairExecutor.Lane watchScheduler;
+    private final long watchSyncDelayMillis;
+    private final long watchSelfChangeMillis;
+    // login -> time it was changed by this node, notifications about own changes are not synced back
+    private final Map<String, Long> selfChanges = new ConcurrentHashMap<>();
+    private volatile long selfChangesPruned;
+    private final Set<String> gsuiteChanges = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean gsuiteChangesScheduled = new AtomicBoolean();
+
+    // domain leases in cluster mode, null - all domains are synced by this node
+    private final ShardLeases shardLeases;
+    // domains applied to mapper, null - all domains, scheduler thread only
+    private Set<String> ownedDomains;
+
+    private final UserSnapshot userSnapshot;
+    private final long snapshotVerifyDelayMillis;
+    // users loaded from snapshot, used only by first sync
+    private List<User> snapshotUsers;
 
     // TODO We're using only one thread for tasks, but we should check if it's really thread safe
     private volatile LDAPConnection listenConnection;
     private volatile AsyncRequestID listenReqId;
     private volatile ASN1OctetString cookie;
 
-    private enum Status {
-        IDLE,
-        SCHEDULED,
-        SYNCING,
-        SYNCING_REPEAT
+    public GSuiteSyncService(GSuiteSyncConfig config) throws Exception {
+        this(config, new SharedResources(1, 2, config.getGsuiteConfig().getThreads(),
+                config.getMailConfig().getThreads(), config.getMetricsConfig(), null), true);
     }
 
-    private Status syncStatus = Status.IDLE;
-    // some delay on startup - to be sure all initial changes will be received
-    private long lastSync = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    /**
+     * Service of one tenant in multi-tenant mode, shared resources are not stopped by service.
+     */
+    GSuiteSyncService(GSuiteSyncConfig config, SharedResources shared) throws Exception {
+        this(config, shared, false);
+    }
+
+    private GSuiteSyncService(GSuiteSyncConfig config, SharedResources shared, boolean ownShared) throws Exception {
+        this.shared = shared;
+        this.ownShared = ownShared;
+        tenant = config.getName();
+        name = tenant == null ? "sync" : tenant;
 
-    public GSuiteSyncService(GSuiteSyncConfig config) throws Exception {
         GSuiteSyncConfig.GSuiteConfig gc = config.getGsuiteConfig();
-        domains = gc.getDomains();
+        mapper = new UserMapper(
+                gc.getDomains(), new MappingRules(config.getMappingConfig()),
+                gc.getUseFingerprint(), gc.getFingerprintKey()
+        );
 
-        directory = GoogleHelper.createDirectoryService(gc.getCredentialsFile(), gc.getDelegatedUser());
+        googleRetry = new GoogleRetry(gc.getRetryInitialDelayMillis(), gc.getRetryMaxDelayMillis(),
+                gc.getRetryMaxElapsedMillis());
+        HttpTransport httpTransport = shared.getHttpTransport(gc);
+        credentialsPool = GoogleHelper.createCredentialsPool(gc.getCredentialsFile(), gc.getDelegatedUser(),
+                httpTransport, gc.getAccountQueriesPerMinute(),
+                TimeUnit.SECONDS.toMillis(gc.getTokenRefreshBeforeSeconds()),
+                shared.newBackgroundLane(name + "-tokens"));
+        directory = GoogleHelper.createDirectoryService(httpTransport, credentialsPool, apiMetrics, googleRetry);
+
+        userDiff = new UserDiff(mapper, gc.getReportUncontrolled());
+        batchSize = gc.getBatchSize();
+        threads = gc.getThreads();
+        streamingDiff = gc.getStreamingDiff();
+        diffMemoryUsers = gc.getDiffMemoryUsers();
+        diffTmpDir = gc.getDiffTmpDir();
+        listPageSize = gc.getListPageSize();
+        listFields = gc.getListFields() == null || gc.getListFields().isEmpty()
+                ? null
+                : "nextPageToken,users(" + String.join(",", gc.getListFields()) + ")";
+
+        GSuiteSyncConfig.ClusterConfig clusterConfig = config.getClusterConfig();
+        boolean cluster = clusterConfig != null && clusterConfig.getLeaseStore() != null;
+
+        if (streamingDiff && gc.getSnapshotFile() != null) {
+            LOG.warn("Gsuite users snapshot is not used with streaming diff");
+        }
+        if (cluster && gc.getSnapshotFile() != null) {
+            LOG.warn("Gsuite users snapshot is not used in cluster mode");
+        }
 
-        reportUncontrolled = gc.getReportUncontrolled();
-        retrySyncInMillis = TimeUnit.SECONDS.toMillis(gc.getSyncRetryDelaySeconds());
+        userSnapshot = gc.getSnapshotFile() == null || streamingDiff || cluster
+                ? null
+                : new UserSnapshot(gc.getSnapshotFile(), directory.getJsonFactory(), gc.getListFields());
+        snapshotVerifyDelayMillis = TimeUnit.SECONDS.toMillis(gc.getSnapshotVerifyDelaySeconds());
+        syncJournal = gc.getJournalFile() == null ? null : new SyncJournal(gc.getJournalFile());
+        retryQueue = gc.getUserRetryAttempts() > 0
+                ? new RetryQueue(gc.getUserRetryAttempts(), TimeUnit.SECONDS.toMillis(gc.getUserRetryDelaySeconds()),
+                TimeUnit.SECONDS.toMillis(gc.getUserRetryMaxDelaySeconds()))
+                : null;
 
         ldapConfig = config.getLdapConfig();
-        ldapHelper = new LdapHelper(ldapConfig.getUrl());
+        ldapHelper = shared.getLdapHelper(ldapConfig.getUrl());
+        ldapFilter = createLdapFilter(ldapConfig.getLoginFilter());
+        ldapPool = ldapConfig.getPoolSize() > 0 ? shared.getLdapPool(ldapConfig) : null;
+        ldapMirror = ldapConfig.getUseMirror() ? new LdapMirror() : null;
+        ldapState = ldapConfig.getStateFile() == null ? null : new LdapState(ldapConfig.getStateFile());
 
         MailConfig mailConfig = config.getMailConfig();
         emailFactory = new CommonsEmailFactory(
                 mailConfig.getHost(), mailConfig.getLogin(),
                 mailConfig.getPassword(), mailConfig.getAddress(),
-                mailConfig.getThreads(), mailConfig.getSendRetries(),
+                shared.getMailExecutor(), mailConfig.getSendRetries(),
                 mailConfig.getRetryDelayMillis()
         );
 
         emailFrom = mailConfig.getFrom();
         emailTo = mailConfig.getTo();
 
-        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler = shared.newSchedulerLane(name);
+        syncScheduler = new SyncScheduler(scheduler, this::doSyncSafe,
+                gc.getSyncQuietMillis(), gc.getSyncMaxQuietMillis(), gc.getSyncMaxWaitMillis(),
+                gc.getSyncStartupDelayMillis(), TimeUnit.SECONDS.toMillis(gc.getSyncRetryDelaySeconds()));
+        mutationExecutor = threads > 1 ? shared.newMutationLane(name, threads) : null;
+
+        GSuiteSyncConfig.WatchConfig watchConfig = config.getWatchConfig();
+        watchScheduler = watchConfig != null && watchConfig.getPort() > 0
+                ? shared.newBackgroundLane(name + "-watch")
+                : null;
+        directoryWatcher = watchScheduler != null
+                ? new DirectoryWatcher(directory, googleRetry, watchConfig, watchScheduler, shared.getHttpExecutor(),
+                this::onGSuiteChange)
+                : null;
+        watchSyncDelayMillis = watchConfig == null ? 0 : watchConfig.getSyncDelayMillis();
+        watchSelfChangeMillis = watchConfig == null ? 0 : watchConfig.getSelfChangeMillis();
+
+        shardLeases = cluster
+                ? new ShardLeases(createLeaseStore(clusterConfig),
+                clusterConfig.getNode() != null ? clusterConfig.getNode() : defaultNodeName(),
+                gc.getDomains().stream().map(GSuiteSyncConfig.Domain::getDomain).collect(Collectors.toList()),
+                TimeUnit.SECONDS.toMillis(clusterConfig.getLeaseTtlSeconds()),
+                TimeUnit.SECONDS.toMillis(clusterConfig.getRenewIntervalSeconds()), this::onLeasesChanged,
+                shared.newBackgroundLane(name + "-leases"))
+                : null;
+        if (shardLeases != null) {
+            mapper.setLeaseCheck(shardLeases::owns);
+        }
+
+        GSuiteSyncConfig.MetricsConfig metricsConfig = config.getMetricsConfig();
+        if (!ownShared && metricsConfig != null && metricsConfig.getPort() > 0) {
+            LOG.warn("Metrics endpoint of tenant is not used, metrics are served by shared endpoint");
+        }
+        shared.addMetrics(name, metrics);
+
+        metrics.gauge("gsuite_ldap_listener_connected", "Ldap listener connection state",
+                () -> listenConnection != null ? 1 : 0);
+        metrics.gauge("gsuite_scheduler_queue_size", "Tasks in scheduler queue",
+                scheduler::getQueueSize);
+        metrics.gauge("gsuite_sync_pending_events", "Ldap change events waiting for sync",
+                syncScheduler::getPendingEvents);
+        metrics.gauge("gsuite_sync_last_events", "Ldap change events absorbed by last sync",
+                syncScheduler::getLastSyncEvents);
+        metrics.gauge("gsuite_mail_pending", "Report emails queued or being sent",
+                emailFactory::getPendingCount);
+        if (retryQueue != null) {
+            metrics.gauge("gsuite_retry_users", "Failed users waiting for retry", retryQueue::size);
+        }
+        if (ldapMirror != null) {
+            metrics.gauge("gsuite_ldap_mirror_entries", "Entries in ldap mirror", ldapMirror::size);
+        }
+        if (shardLeases != null) {
+            metrics.gauge("gsuite_cluster_domains", "Domains synced by this node", () -> shardLeases.getHeld().size());
+        }
     }
 
-    public void startService() {
+    private LeaseStore createLeaseStore(GSuiteSyncConfig.ClusterConfig cc) throws IOException,
+            GeneralSecurityException, LDAPException {
+        switch (cc.getLeaseStore()) {
+            case "file":
+                return new FileLeaseStore(cc.getLeaseDir());
+
+            case "ldap":
+                // without own bind dn leases use the same pool as ldap reads
+                return new LdapLeaseStore(cc.getLeaseBindDn() != null
+                        ? shared.getLdapPool(ldapConfig, cc.getLeaseBindDn(), cc.getLeaseBindPw())
+                        : shared.getLdapPool(ldapConfig), cc.getLeaseDn());
+
+            default:
+                throw new IllegalArgumentException("Unknown lease store: " + cc.getLeaseStore());
+        }
+    }
+
+    private static String defaultNodeName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    public void startService() throws IOException {
+        if (ownShared) {
+            shared.start();
+        }
+
+        credentialsPool.start();
+
+        if (shardLeases != null) {
+            // nothing is synced until domains are leased
+            mapper.setOwnedDomains(Collections.emptySet());
+        }
+
+        loadSnapshot();
+        loadLdapState();
+
+        if (streamingDiff) {
+            int deleted = ExternalSorter.deleteStaleRuns(diffTmpDir);
+            if (deleted > 0) {
+                LOG.info("Deleted {} stale diff runs", deleted);
+            }
+        }
+
         scheduler.schedule(this::setupLdapListener, 0, TimeUnit.MILLISECONDS);
+
+        if (shardLeases != null) {
+            shardLeases.start();
+        }
+
+        if (directoryWatcher != null) {
+            directoryWatcher.start();
+        }
     }
 
     public void stopService() {
         LOG.info("Stopping...");
 
+        if (directoryWatcher != null) {
+            // renewal can't register channels after they are stopped
+            watchScheduler.shutdownNow();
+            try {
+                if (!watchScheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOG.error("Timeout while waiting channel renewal to stop");
+                }
+            } catch (InterruptedException ie) {
+                LOG.error("Interrupted while stopping", ie);
+            }
+
+            directoryWatcher.stop();
+        }
+
         scheduler.shutdownNow();
 
         try {
@@ -138,60 +385,79 @@ public class GSuiteSyncService {
             LOG.error("Interrupted while stopping", ie);
         }
 
+        if (mutationExecutor != null) {
+            mutationExecutor.shutdownNow();
+        }
+
+        // sync is stopped, domains can be taken by other nodes
+        if (shardLeases != null) {
+            shardLeases.stop();
+        }
+
         closeSearch();
 
+        credentialsPool.stop();
+
+        if (ldapState != null) {
+            saveLdapState();
+        }
+
         emailFactory.stop();
 
+        shared.removeMetrics(name);
+
+        if (ownShared) {
+            shared.close();
+        }
+
         LOG.info("Stopped.");
     }
 
-    private void scheduleSync(long delay) {
-        synchronized (this) {
-            switch (syncStatus) {
-                case IDLE:
-                    LOG.info("Change detected, sync scheduled.");
-                    long now = System.currentTimeMillis();
-                    long syncTime = Math.max(now + delay, lastSync + TimeUnit.SECONDS.toMillis(3));
-                    syncStatus = Status.SCHEDULED;
-                    scheduler.schedule(this::doSyncIfNeed, syncTime - now, TimeUnit.MILLISECONDS);
-                    break;
+    /**
+     * Dry run: calculates what sync would do and writes plan with api usage estimate, nothing is changed.
+     */
+    public void writePlan(File file) throws LDAPException, IOException {
+        Msgs msgs = new Msgs();
+        long start = System.nanoTime();
 
-                case SYNCING:
-                    syncStatus = Status.SYNCING_REPEAT;
-                    break;
-            }
-        }
-    }
+        List<LdapUser> ldapUsers = getLdapUsers(msgs);
+        ldapUsers.sort(UserDiff.LDAP_ORDER);
 
-    private void forceScheduleSync(long delay) {
-        syncStatus = Status.IDLE;
-        scheduleSync(delay);
-    }
+        List<User> gsuiteUsers = getGSuiteUsers();
+        gsuiteUsers.sort(UserDiff.GSUITE_ORDER);
 
-    private void doSyncIfNeed() {
-        synchronized (this) {
-            syncStatus = Status.SYNCING;
-        }
+        double listSeconds = (System.nanoTime() - start) / 1e9;
 
-        boolean isOk = doSyncSafe();
+        SyncPlan plan = new SyncPlan(mapper, batchSize, threads, msgs);
+        userDiff.diff(ldapUsers.iterator(), gsuiteUsers.iterator(), plan, msgs);
 
-        synchronized (this) {
-            lastSync = System.currentTimeMillis();
+        plan.write(file, ldapUsers.size(), gsuiteUsers.size(), listSeconds, measureBatchLatency(gsuiteUsers), msgs);
 
-            if (isOk) {
-                if (syncStatus == Status.SYNCING) {
-                    syncStatus = Status.IDLE;
-                } else {
-                    forceScheduleSync(0);
-                }
-            } else {
-                forceScheduleSync(retrySyncInMillis);
-            }
+        LOG.info("Sync plan is written to {}", file);
+    }
+
+    /**
+     * Latency of one full batch, read only requests are used.
+     */
+    private double measureBatchLatency(List<User> users) throws IOException {
+        DirectoryBatch batch = new DirectoryBatch(directory, batchSize, null, apiMetrics);
+        for (User u : users.subList(0, Math.min(batchSize, users.size()))) {
+            batch.queue(u.getPrimaryEmail(), directory.users().get(u.getPrimaryEmail()).setFields("primaryEmail"));
+        }
+
+        if (batch.isEmpty()) {
+            return 0;
         }
+
+        long start = System.nanoTime();
+        batch.execute();
+        return (System.nanoTime() - start) / 1e9;
     }
 
-    private boolean doSyncSafe() {
-        LOG.info("Syncing ldap with gsuite");
+    private boolean doSyncSafe(int events) {
+        LOG.info("Syncing ldap with gsuite, change events: {}", events);
+
+        syncEvents.add(events);
 
         Msgs msgs = new Msgs();
 
@@ -211,6 +477,16 @@ public class GSuiteSyncService {
             isOk = false;
         }
 
+        sendReport(msgs, "sync");
+
+        LOG.info("Sync finished");
+
+        syncCount.inc(isOk ? "ok" : "error");
+
+        return isOk;
+    }
+
+    private void sendReport(Msgs msgs, String what) {
         try {
             if (msgs.hasMessages()) {
                 SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -218,318 +494,524 @@ public class GSuiteSyncService {
                 Email m = emailFactory.createEmail();
                 m.setFrom(emailFrom);
                 emailTo.forEach(m::addTo);
-                m.setSubject("[" + msgs.getSubject() + "] sync completed at " + format.format(new Date()));
+                m.setSubject("[" + msgs.getSubject() + "] " + (tenant == null ? "" : tenant + " ") + what
+                        + " completed at " + format.format(new Date()));
                 m.setMessage(msgs.getMessages());
                 m.send();
             }
         } catch (Exception e) {
             LOG.error("Fatal error sending report", e);
         }
-
-        LOG.info("Sync finished");
-
-        return isOk;
     }
 
     private void doSync(Msgs msgs) throws LDAPException, IOException {
-        Map<String, LdapUser> ldapUsers = getLdapUsers(msgs).stream()
-                .collect(Collectors.toMap((u) -> u.login, (u) -> u));
-
-        Map<String, User> gsuiteUsers = getGSuiteUsers().stream()
-                .collect(Collectors.toMap(User::getPrimaryEmail, (u) -> u));
-
-        Set<String> forDel = new TreeSet<>();
-        Set<String> forAdd = new TreeSet<>();
-        Set<String> forUpd = new TreeSet<>();
-        Set<String> forCtrl = new TreeSet<>();
-
-        ldapUsers.values().forEach((u) -> {
-            if (u.needSync) {
-                String login = u.login;
-                User gu = gsuiteUsers.get(login);
-                if (gu == null) {
-                    if (!u.failed) {
-                        forAdd.add(login);
-                    }
-                } else if (needSync(u, gu)) {
-                    forUpd.add(login);
+        Set<String> failed;
 
-                    if (u.failed) {
-                        forDel.add(login);
-                    }
-                }
+        if (shardLeases != null && ownedDomains == null) {
+            // sync will be scheduled when domains are leased
+            LOG.info("Domain leases are not taken yet, skipping sync");
+            return;
+        }
+
+        if (syncJournal != null && syncJournal.exists()) {
+            failed = resumeSync(msgs);
+        } else {
+            if (ldapMirror != null && !ldapMirror.isReady()) {
+                // sync will be scheduled again when refresh is done
+                LOG.info("Ldap mirror is not ready, skipping sync");
+                return;
             }
-        });
 
-        if (reportUncontrolled) {
-            gsuiteUsers.values().forEach((u) -> {
-                String login = u.getPrimaryEmail();
-                LdapUser lu = ldapUsers.get(login);
-                if (lu == null) {
-                    forCtrl.add(login);
+            try {
+                failed = streamingDiff ? doStreamingSync(msgs) : doMemorySync(msgs);
+            } finally {
+                if (syncJournal != null) {
+                    syncJournal.close();
                 }
-            });
+            }
+
+            // without retry queue journal of failed sync is kept, next sync will continue not finished changes
+            if (syncJournal != null && (failed.isEmpty() || retryQueue != null)) {
+                syncJournal.delete();
+            }
+
+            if (retryQueue != null) {
+                // all users were checked, only just failed ones need retry
+                retryQueue.retain(failed);
+            }
         }
 
-        LOG.info("for del: {}, add: {}, update: {}, ctrl: {}", forDel.size(), forAdd.size(), forUpd.size(), forCtrl.size());
+        if (retryQueue != null) {
+            queueUserRetry(failed, msgs);
+        } else if (!failed.isEmpty()) {
+            throw new IOException("Google operations failed for users: " + failed.size());
+        }
+    }
 
-        List<LdapUser> forAliasUpdate = new ArrayList<>();
+    private void queueUserRetry(Collection<String> failed, Msgs msgs) {
+        if (!failed.isEmpty()) {
+            LOG.info("Failed users will be retried: {}", failed.size());
+        }
 
-        forDel.forEach((login) -> {
-            LOG.info("User should be deleted manually: {}", login);
-            msgs.warn("user should be deleted manually: %s", login);
-        });
+        for (String login : retryQueue.failed(failed, System.currentTimeMillis())) {
+            LOG.error("User sync failed, no retry attempts left: {}", login);
+            msgs.error("user sync failed, no retry attempts left: %s", login);
+        }
 
-        forCtrl.forEach((login) -> {
-            LOG.info("User is not under control: {}", login);
-            msgs.warn("user is not under control: %s", login);
-        });
+        scheduleUserRetry();
+    }
 
-        forAdd.forEach((login) -> {
-            LdapUser lu = ldapUsers.get(login);
+    private void scheduleUserRetry() {
+        if (userRetryTask != null) {
+            userRetryTask.cancel(false);
+            userRetryTask = null;
+        }
 
-            LOG.info("Adding user: {}", login);
+        long next = retryQueue.nextMillis();
+        if (next >= 0) {
+            userRetryTask = scheduler.schedule(this::retryUsers, Math.max(0, next - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
 
-            User user = createUser(lu, msgs);
-            if (user.getPassword() == null) {
-                LOG.info("Can't add user without password: {}", login);
-                msgs.warn("can't add user without password: %s", login);
-                return;
-            }
+    private void retryUsers() {
+        userRetryTask = null;
 
-            try {
-                directory.users().insert(user).execute();
+        List<String> logins = retryQueue.due(System.currentTimeMillis());
+        if (logins.isEmpty()) {
+            scheduleUserRetry();
+            return;
+        }
 
-                if (lu.aliases.size() > 0) {
-                    forAliasUpdate.add(lu);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Error adding new user", e);
-            }
+        LOG.info("Retrying failed users: {}", logins.size());
 
-            msgs.info("user added: %s", login);
-        });
+        Msgs msgs = new Msgs();
 
-        forUpd.forEach((login) -> {
-            LdapUser lu = ldapUsers.get(login);
+        Set<String> failed;
+        try {
+            failed = reconcileUsers(logins, msgs);
+        } catch (Exception e) {
+            LOG.error("Error retrying failed users", e);
+            msgs.error("error retrying failed users: %s", e.toString());
 
-            LOG.info("Updating user: {}", login);
+            failed = new HashSet<>(logins);
+        }
 
-            User user = createUser(lu, msgs);
+        Set<String> stillFailed = failed;
+        retryQueue.succeeded(logins.stream().filter((l) -> !stillFailed.contains(l)).collect(Collectors.toList()));
+        queueUserRetry(failed, msgs);
 
-            try {
-                directory.users().update(login, user).execute();
-            } catch (IOException e) {
-                throw new RuntimeException("Error updating user", e);
-            }
+        sendReport(msgs, "user retry");
+    }
 
-            if (needAliasUpdate(lu, gsuiteUsers.get(login))) {
-                forAliasUpdate.add(lu);
-            }
+    /**
+     * Called from lease thread.
+     */
+    private void onLeasesChanged() {
+        try {
+            scheduler.execute(this::applyLeases);
+        } catch (RejectedExecutionException e) {
+            // service is stopping
+        }
+    }
 
-            msgs.info("user updated: %s", login);
-        });
+    /**
+     * Domains are changed between tasks, so each sync sees the same domains on both sides.
+     */
+    private void applyLeases() {
+        Set<String> held = shardLeases.getHeld();
 
-        forAliasUpdate.forEach((lu) -> {
-            try {
-                Aliases aliases = directory.users().aliases().list(lu.login).execute();
-                Set<String> all = new HashSet<>();
-                if (aliases.getAliases() != null) {
-                    aliases.getAliases().forEach((o) -> {
-                        @SuppressWarnings("unchecked")
-                        Map<String, String> a = (Map<String, String>) o;
-                        if ("admin#directory#alias".equals(a.get("kind"))) {
-                            all.add(a.get("alias"));
-                        }
-                    });
-                }
+        boolean gained = ownedDomains == null ? !held.isEmpty() : !ownedDomains.containsAll(held);
 
-                lu.aliases.forEach((a) -> {
-                    if (!all.contains(a)) {
-                        LOG.info("Adding alias {} for {}", a, lu.login);
+        ownedDomains = held;
+        mapper.setOwnedDomains(held);
+        // dropped domains are not used anymore and may be released
+        shardLeases.setActive(held);
 
-                        try {
-                            directory.users().aliases().insert(lu.login, new Alias().setAlias(a)).execute();
-                        } catch (IOException e) {
-                            throw new RuntimeException("Error adding alias", e);
-                        }
+        LOG.info("Synced domains: {}", held);
 
-                        msgs.info("alias added: %s for %s", a, lu.login);
-                    }
-                });
+        if (gained) {
+            syncScheduler.onChange();
+        }
+    }
 
-                all.forEach((a) -> {
-                    if (!lu.aliases.contains(a)) {
-                        LOG.info("Deleting alias {} for {}", a, lu.login);
+    /**
+     * Called from notification receiver thread.
+     */
+    private void onGSuiteChange(String login) {
+        boolean controlled = mapper.isControlled(login);
+        gsuiteNotifications.inc(controlled ? "yes" : "no");
 
-                        try {
-                            directory.users().aliases().delete(lu.login, a).execute();
-                        } catch (IOException e) {
-                            throw new RuntimeException("Error deleting alias", e);
-                        }
+        if (controlled && !isSelfChange(login)) {
+            gsuiteChanges.add(login);
 
-                        msgs.info("alias deleted: %s for %s", a, lu.login);
-                    }
-                });
-            } catch (IOException e) {
-                throw new RuntimeException("Error updating aliases", e);
+            if (!gsuiteChangesScheduled.getAndSet(true)) {
+                scheduler.schedule(this::syncGSuiteChanges, watchSyncDelayMillis, TimeUnit.MILLISECONDS);
             }
-        });
+        }
     }
 
-    private String getLastModify(User gu) {
-        if (gu.getExternalIds() != null) {
-            // Latest google client library does not parse this object as UserExternalID
-            //noinspection unchecked
-            return ((List<Map<String, String>>) gu.getExternalIds())
-                    .stream()
-                    .filter((e) -> "custom".equals(e.get("type")) && "lastModify".equals(e.get("customType")))
-                    .map((e) -> e.get("value"))
-                    .findFirst()
-                    .orElse(null);
+    /**
+     * @return listener which remembers users changed by this node, given listener is called after it
+     */
+    private Consumer<User> trackSelfChanges(Consumer<User> listener) {
+        if (directoryWatcher == null) {
+            return listener;
         }
 
-        return null;
+        Consumer<User> track = (u) -> selfChanges.put(u.getPrimaryEmail(), System.currentTimeMillis());
+        return listener == null ? track : track.andThen(listener);
     }
 
-    private boolean needAliasUpdate(LdapUser lu, User gu) {
-        if (gu.getAliases() == null) {
-            return lu.aliases.size() != 0;
+    /**
+     * Called from notification receiver thread and scheduler.
+     */
+    private boolean isSelfChange(String login) {
+        long now = System.currentTimeMillis();
+
+        if (now - selfChangesPruned > watchSelfChangeMillis) {
+            selfChangesPruned = now;
+            selfChanges.values().removeIf((changed) -> now - changed > watchSelfChangeMillis);
         }
 
-        return !lu.aliases.equals(new HashSet<>(gu.getAliases()));
+        Long changed = selfChanges.get(login);
+        return changed != null && now - changed <= watchSelfChangeMillis;
     }
 
-    private boolean needSync(LdapUser lu, User gu) {
-        if (!Objects.equals(lu.lastModify, getLastModify(gu))) {
-            return true;
-        }
+    private void syncGSuiteChanges() {
+        gsuiteChangesScheduled.set(false);
 
-        UserName name = gu.getName();
-        if (!Objects.equals(lu.givenName, name.getGivenName())
-                || !Objects.equals(lu.surName, name.getFamilyName())
-                || !Objects.equals(lu.givenName + ' ' + lu.surName, name.getFullName())) {
-            return true;
+        List<String> logins = new ArrayList<>();
+        for (Iterator<String> it = gsuiteChanges.iterator(); it.hasNext(); ) {
+            String login = it.next();
+            it.remove();
+
+            // notification may come before sync which changed user has finished
+            if (!isSelfChange(login)) {
+                logins.add(login);
+            }
         }
 
-        if (needAliasUpdate(lu, gu)) {
-            return true;
+        if (logins.isEmpty()) {
+            return;
         }
 
-        if (!Objects.equals(lu.orgUnit, gu.getOrgUnitPath())) {
-            return true;
+        LOG.info("Syncing users changed in gsuite: {}", logins.size());
+
+        Msgs msgs = new Msgs();
+
+        try {
+            Set<String> failed = reconcileUsers(logins, msgs);
+
+            if (retryQueue != null) {
+                queueUserRetry(failed, msgs);
+            } else if (!failed.isEmpty()) {
+                syncScheduler.onChange();
+            }
+        } catch (Exception e) {
+            LOG.error("Error syncing users changed in gsuite", e);
+            msgs.error("error syncing users changed in gsuite: %s", e.toString());
+
+            syncScheduler.onChange();
         }
 
-        if (lu.searchable != gu.getIncludeInGlobalAddressList()) {
-            return true;
+        sendReport(msgs, "gsuite change sync");
+    }
+
+    /**
+     * Sync only given users: ldap entries are searched by login and gsuite users are fetched with users.get,
+     * so nothing is listed.
+     *
+     * @return logins with failed google operations
+     */
+    private Set<String> reconcileUsers(Collection<String> logins, Msgs msgs) throws LDAPException, IOException {
+        Set<String> failed = new LinkedHashSet<>();
+
+        // domain may be taken by other node since login was queued
+        logins = logins.stream().filter(mapper::isControlled).collect(Collectors.toList());
+
+        DirectoryBatch batch = new DirectoryBatch(directory, batchSize, mutationExecutor, apiMetrics);
+        for (String login : logins) {
+            batch.queue(login, directory.users().get(login));
         }
 
-        // Latest google client does not parse this value as UserPhone :(
-        @SuppressWarnings("unchecked")
-        List<Map<String, String>> phones = (List<Map<String, String>>) gu.getPhones();
-        if (lu.phone == null) {
-            if (phones != null && phones.size() != 0) {
-                return true;
-            }
-        } else {
-            String phone = null;
-            if (phones != null && phones.size() == 1) {
-                Map<String, String> p = phones.get(0);
-                if ("mobile".equals(p.get("type"))) {
-                    phone = phones.get(0).get("value");
+        List<User> gsuiteUsers = new ArrayList<>();
+        for (DirectoryBatch.Op<?> op : batch.execute()) {
+            if (op.isOk()) {
+                User u = (User) op.getResult();
+                // login may be an alias of other user, then there is no such user
+                if (op.getLogin().equals(u.getPrimaryEmail())) {
+                    gsuiteUsers.add(u);
                 }
-            }
+            } else if (op.getError().getCode() != 404) {
+                failed.add(op.getLogin());
 
-            if (!lu.phone.equals(phone)) {
-                return true;
+                LOG.error("Error getting user {}: {}", op.getLogin(), op.getError().getMessage());
+                msgs.error("error getting user %s: %s", op.getLogin(), op.getError().getMessage());
             }
         }
 
-        if (lu.failed) {
-            if (!Strings.isNullOrEmpty((String) gu.get("recoveryEmail"))
-                    || !Strings.isNullOrEmpty((String) gu.get("recoveryPhone"))) {
-                return true;
-            }
-        }
+        List<LdapUser> ldapUsers = findLdapUsers(logins, msgs);
+        ldapUsers.removeIf((u) -> failed.contains(u.login));
+
+        ldapUsers.sort(UserDiff.LDAP_ORDER);
+        gsuiteUsers.sort(UserDiff.GSUITE_ORDER);
+
+        UserMutations mutations = new UserMutations(directory, mapper,
+                new DirectoryBatch(directory, batchSize, mutationExecutor, apiMetrics), Integer.MAX_VALUE, msgs,
+                trackSelfChanges(null), null);
 
-        return false;
+        // users may be changed in gsuite (notification) and fingerprint can't detect it, few users - compare all
+        userDiff.diff(ldapUsers.iterator(), gsuiteUsers.iterator(), true, mutations, msgs);
+        mutations.finish();
+
+        failed.addAll(mutations.getFailed());
+        return failed;
     }
 
-    private static byte[] sha1(String str) {
+    /**
+     * Continue not finished changes of interrupted or failed sync without listing and diff. Journal is used once:
+     * if something fails again, next sync is full.
+     *
+     * @return logins with failed google operations
+     */
+    private Set<String> resumeSync(Msgs msgs) throws IOException {
+        long phaseStart = System.nanoTime();
+
+        SyncJournal.Pending pending;
+        try {
+            pending = syncJournal.load();
+        } catch (IOException e) {
+            LOG.warn("Error loading sync journal, full sync will be done", e);
+            syncJournal.delete();
+            syncScheduler.onChange();
+            return Collections.emptySet();
+        }
+
+        LOG.info("Resuming interrupted sync, not finished user changes: {}", pending.actions.size());
+        msgs.info("resuming interrupted sync: %d users", pending.actions.size());
+
+        // snapshot may be older than changes done by interrupted sync
+        snapshotUsers = null;
+
+        UserMutations mutations;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            return md.digest(str.getBytes());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            syncJournal.append();
+
+            mutations = new UserMutations(directory, mapper,
+                    new DirectoryBatch(directory, batchSize, mutationExecutor, apiMetrics),
+                    streamingDiff ? batchSize * Math.max(threads, 1) : Integer.MAX_VALUE, msgs,
+                    trackSelfChanges(null), syncJournal);
+
+            for (SyncJournal.Action a : pending.actions) {
+                // domain is synced by other node now
+                if (mapper.isControlled(a.lu.login)) {
+                    mutations.resume(a);
+                }
+            }
+
+            mutations.finish();
+        } finally {
+            syncJournal.delete();
         }
+
+        phaseDone("mutations", phaseStart);
+
+        // ldap and gsuite could change since plan was made, if plan is not complete then full sync is needed now
+        scheduler.schedule(syncScheduler::onChange, pending.planComplete ? snapshotVerifyDelayMillis : 0,
+                TimeUnit.MILLISECONDS);
+
+        return mutations.getFailed();
     }
 
-    private User createUser(LdapUser lu, Msgs msgs) {
-        User user = new User();
-        user.setPrimaryEmail(lu.login);
-        user.setChangePasswordAtNextLogin(false);
-        user.setOrgUnitPath(lu.orgUnit);
-        user.setIncludeInGlobalAddressList(lu.searchable);
+    /**
+     * All ldap and gsuite users are kept in memory, changes are executed after diff is done.
+     *
+     * @return logins with failed google operations
+     */
+    private Set<String> doMemorySync(Msgs msgs) throws LDAPException, IOException {
+        long phaseStart = System.nanoTime();
+
+        List<LdapUser> ldapUsers = ldapMirror != null
+                ? getLdapUsers(ldapMirror.getEntries(), msgs)
+                : getLdapUsers(msgs);
+        ldapUsers.sort(UserDiff.LDAP_ORDER);
 
-        String pass = lu.password;
+        phaseStart = phaseDone("ldap", phaseStart);
 
-        if (lu.failed) {
-            // generate random (unknown) password for failed employees
-            pass = "{SHA}" + Base64.encodeBase64String(sha1(passwordGenerator.genPass()));
-            // and reset recovery email and phone
-            user.set("recoveryEmail", "");
-            user.set("recoveryPhone", "");
+        List<User> gsuiteUserList;
+        if (snapshotUsers != null) {
+            LOG.info("Using gsuite users snapshot, full listing will be done in {} seconds",
+                    TimeUnit.MILLISECONDS.toSeconds(snapshotVerifyDelayMillis));
+
+            gsuiteUserList = snapshotUsers;
+            snapshotUsers = null;
+
+            scheduler.schedule(syncScheduler::onChange, snapshotVerifyDelayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            gsuiteUserList = getGSuiteUsers();
+        }
+        gsuiteUserList.sort(UserDiff.GSUITE_ORDER);
+
+        Map<String, User> gsuiteUsers = userSnapshot == null
+                ? null
+                : gsuiteUserList.stream().collect(Collectors.toMap(User::getPrimaryEmail, (u) -> u));
+
+        phaseStart = phaseDone("google_list", phaseStart);
+
+        if (syncJournal != null) {
+            syncJournal.begin();
         }
 
-        if (pass != null) {
-            if (pass.startsWith(SHA_PREFIX)) {
-                user.setHashFunction("SHA-1");
-                user.setPassword(BaseEncoding.base16()
-                        .encode(Base64.decodeBase64(pass.substring(SHA_PREFIX.length()))));
+        UserMutations mutations = new UserMutations(directory, mapper,
+                new DirectoryBatch(directory, batchSize, mutationExecutor, apiMetrics), Integer.MAX_VALUE, msgs,
+                trackSelfChanges(gsuiteUsers == null ? null : (u) -> gsuiteUsers.put(u.getPrimaryEmail(), u)),
+                syncJournal);
+
+        userDiff.diff(ldapUsers.iterator(), gsuiteUserList.iterator(), mutations, msgs);
+
+        phaseStart = phaseDone("diff", phaseStart);
+
+        mutations.finish();
+
+        phaseDone("mutations", phaseStart);
+
+        if (mutations.getFailed().isEmpty() && gsuiteUsers != null) {
+            saveSnapshot(gsuiteUsers.values());
+        }
+
+        return mutations.getFailed();
+    }
+
+    /**
+     * Ldap and gsuite users are sorted by login with external sort and merged, changes are executed in chunks
+     * while merging, so memory depends on sort buffer and chunk size only.
+     *
+     * @return logins with failed google operations
+     */
+    private Set<String> doStreamingSync(Msgs msgs) throws LDAPException, IOException {
+        long phaseStart = System.nanoTime();
+
+        try (
+                ExternalSorter<LdapUser> ldapUsers = new ExternalSorter<>(UserDiff.LDAP_ORDER,
+                        UserDiff.LDAP_USER_CODEC, diffMemoryUsers, diffTmpDir);
+                ExternalSorter<User> gsuiteUsers = new ExternalSorter<>(UserDiff.GSUITE_ORDER,
+                        UserDiff.gsuiteUserCodec(directory.getJsonFactory()), diffMemoryUsers, diffTmpDir)
+        ) {
+            if (ldapMirror != null) {
+                for (Entry e : ldapMirror.getEntries()) {
+                    LdapUser u = mapper.getLdapUser(e, msgs);
+                    if (u != null) {
+                        ldapUsers.add(u);
+                    }
+                }
             } else {
-                LOG.warn("User password is not SHA: {}", lu.login);
-                msgs.warn("user password is not SHA: %s", lu.login);
+                getLdapUsers(msgs, adder(ldapUsers));
             }
+
+            phaseStart = phaseDone("ldap", phaseStart);
+
+            listGSuiteUsers(adder(gsuiteUsers));
+
+            LOG.debug("Sort runs spilled, ldap: {}, gsuite: {}", ldapUsers.getRunCount(), gsuiteUsers.getRunCount());
+
+            phaseStart = phaseDone("google_list", phaseStart);
+
+            if (syncJournal != null) {
+                syncJournal.begin();
+            }
+
+            UserMutations mutations = new UserMutations(directory, mapper,
+                    new DirectoryBatch(directory, batchSize, mutationExecutor, apiMetrics),
+                    batchSize * Math.max(threads, 1), msgs, trackSelfChanges(null), syncJournal);
+
+            userDiff.diff(ldapUsers.sorted(), gsuiteUsers.sorted(), mutations, msgs);
+            mutations.finish();
+
+            phaseDone("mutations", phaseStart);
+
+            return mutations.getFailed();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
+
+    private static <T> Consumer<T> adder(ExternalSorter<T> sorter) {
+        return (value) -> {
+            try {
+                sorter.add(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
 
-        user.setAliases(new ArrayList<>(lu.aliases));
+    private void loadSnapshot() {
+        if (userSnapshot == null) {
+            return;
+        }
 
-        UserName name = new UserName();
-        name.setGivenName(lu.givenName);
-        name.setFamilyName(lu.surName);
-        user.setName(name);
+        try {
+            List<User> users = userSnapshot.load();
+            if (users != null) {
+                snapshotUsers = users.stream()
+                        .filter((u) -> mapper.isControlled(u.getPrimaryEmail()))
+                        .collect(Collectors.toList());
 
-        UserExternalId eid = new UserExternalId();
-        eid.setType("custom");
-        eid.setCustomType("lastModify");
-        eid.setValue(lu.lastModify);
-        List<UserExternalId> eids = new ArrayList<>();
-        eids.add(eid);
-        user.setExternalIds(eids);
+                LOG.info("Loaded gsuite users snapshot: {} users", snapshotUsers.size());
+            }
+        } catch (Exception e) {
+            LOG.warn("Error loading gsuite users snapshot, full listing will be used", e);
+        }
+    }
 
-        if (lu.phone != null) {
-            UserPhone phone = new UserPhone();
-            phone.setValue(lu.phone);
-            phone.setType("mobile");
-            List<UserPhone> phones = new ArrayList<>();
-            phones.add(phone);
-            user.setPhones(phones);
+    private void saveSnapshot(Collection<User> users) {
+        try {
+            userSnapshot.save(users);
+        } catch (Exception e) {
+            LOG.warn("Error saving gsuite users snapshot", e);
         }
+    }
 
-        return user;
+    private long phaseDone(String phase, long startNanos) {
+        syncPhaseTime.observeNanos(startNanos, phase);
+        return System.nanoTime();
     }
 
     /////// Google ///////
 
     private List<User> getGSuiteUsers() throws IOException {
         List<User> allUsers = new ArrayList<>();
+        listGSuiteUsers(allUsers::add);
+        return allUsers;
+    }
+
+    private void listGSuiteUsers(Consumer<User> consumer) throws IOException {
+        if (ownedDomains == null) {
+            listGSuiteUsers(null, consumer);
+        } else {
+            // only domains of this node are listed
+            for (String domain : ownedDomains) {
+                listGSuiteUsers(domain, consumer);
+            }
+        }
+    }
+
+    /**
+     * @param domain - null to list all users of customer
+     */
+    private void listGSuiteUsers(String domain, Consumer<User> consumer) throws IOException {
         String nextPage = null;
 
         while (true) {
-            Users result = directory.users().list()
-                    .setCustomer("my_customer")
-                    .setPageToken(nextPage)
-                    .execute();
+            Directory.Users.List list = domain == null
+                    ? directory.users().list().setCustomer("my_customer")
+                    : directory.users().list().setDomain(domain);
+
+            Users result = googleRetry.execute(list
+                    .setMaxResults(listPageSize)
+                    .setFields(listFields)
+                    .setPageToken(nextPage));
 
             List<User> users = result.getUsers();
             if (users == null) {
@@ -537,11 +1019,9 @@ public class GSuiteSyncService {
             }
 
             users.forEach((u) -> {
-                String login = u.getPrimaryEmail();
-
                 // Looking only for controlled domains
-                if (domains.stream().anyMatch((d) -> isInDomain(login, d))) {
-                    allUsers.add(u);
+                if (mapper.isControlled(u.getPrimaryEmail())) {
+                    consumer.accept(u);
                 }
             });
 
@@ -550,193 +1030,161 @@ public class GSuiteSyncService {
                 break;
             }
         }
-
-        return allUsers;
     }
 
     /////// LDAP ///////
 
-    private static class LdapUser {
-        final String givenName;
-        final String surName;
-        final String login;
-        final Set<String> aliases;
-        final String password;
-        final String phone;
-        final String orgUnit;
-        final boolean searchable;
-        final boolean failed;
-        final String lastModify;
-        final boolean needSync;
-
-        /**
-         * Use data from LDAP
-         *
-         * @param givenName  - user given name
-         * @param surName    - user family name
-         * @param login      - login - main email
-         * @param aliases    - email aliases (only for controlled domains)
-         * @param password   - password (it shoul be only SHA-1 hash in order to be able to sync with google)
-         * @param phone      - phone number
-         * @param orgUnit    - organization unit in gsuite
-         * @param searchable - should we be able to search for contact ?
-         * @param failed     - is this failed employee ?
-         * @param lastModify - last modify time from ldap
-         * @param needSync   - should we sync this user with gsuite
-         */
-        LdapUser(
-                String givenName, String surName, String login, Set<String> aliases,
-                String password, String phone, String orgUnit, boolean searchable,
-                boolean failed, String lastModify, boolean needSync
-        ) {
-            this.givenName = givenName;
-            this.surName = surName;
-            this.login = login;
-            this.aliases = aliases;
-            this.password = password;
-            this.phone = phone;
-            this.orgUnit = orgUnit;
-            this.searchable = searchable;
-            this.failed = failed;
 
-            this.lastModify = lastModify;
-            this.needSync = needSync;
+    /**
+     * Login filter may be full ldap filter or just attribute name which should be present in entry.
+     */
+    private static Filter createLdapFilter(String loginFilter) throws LDAPException {
+        Filter filter = Filter.createEqualityFilter("objectClass", "inetOrgPerson");
+
+        if (Strings.isNullOrEmpty(loginFilter)) {
+            return filter;
         }
-    }
 
-    private static <T> T orDefault(T value, T defValue) {
-        return value == null ? defValue : value;
-    }
+        Filter login = loginFilter.startsWith("(")
+                ? Filter.create(loginFilter)
+                : Filter.createPresenceFilter(loginFilter);
 
-    private static boolean isInDomain(String mail, Domain domain) {
-        return isInDomain(mail, domain.getDomain());
+        return Filter.createANDFilter(filter, login);
     }
 
-    private static boolean isInDomain(String mail, String domain) {
-        return mail.endsWith('@' + domain);
+    private LDAPConnection connect() throws LDAPException {
+        return ldapHelper.connect(ldapConfig.getBindDn(), ldapConfig.getBindPw());
     }
 
-    private LdapUser getLdapUser(SearchResultEntry e, Msgs msgs) {
-        String employeeType = orDefault(e.getAttributeValue("employeeType"), "");
-
-        boolean failed = false;
-
-        switch (employeeType) {
-            case "":
-            case "hidden":
-                // normal user - processing
-                break;
-
-            case "failed":
-                // this user is failed - processing carefully :)
-                failed = true;
-                break;
-
-            case "service":
-                // this user is service and it is used for sending through our own smtp - skipping
-                return null;
+    private interface LdapAction<T> {
+        T run(LDAPConnection connection) throws LDAPException;
+    }
 
-            default:
-                // unknown user type
-                LOG.warn("Unknown employee type: {}, for dn: {}", employeeType, e.getDN());
-                return null;
+    /**
+     * Run action with pooled connection or with new connection if pool is disabled.
+     */
+    private <T> T withLdap(LdapAction<T> action) throws LDAPException {
+        if (ldapPool == null) {
+            try (LDAPConnection connection = connect()) {
+                return action.run(connection);
+            }
         }
 
-        String uid = e.getAttributeValue("uid");
-
-        String login = null;
-        String orgUnit = null;
-        Set<String> mails = new HashSet<>();
-
-        Attribute attr = e.getAttribute("mail");
-        if (attr != null) {
-            for (String mail : attr.getValues()) {
-                for (Domain d : domains) {
-                    if (isInDomain(mail, d)) {
-                        mails.add(mail);
-
-                        String targetMail = uid;
-                        if (!targetMail.contains("@")) {
-                            targetMail = targetMail + '@' + d.getDomain();
-                        }
+        LDAPConnection connection = ldapPool.getConnection();
+        try {
+            T result = action.run(connection);
+            ldapPool.releaseConnection(connection);
+            return result;
+        } catch (LDAPException e) {
+            ldapPool.releaseConnectionAfterException(connection, e);
+            throw e;
+        } catch (RuntimeException e) {
+            ldapPool.releaseDefunctConnection(connection);
+            throw e;
+        }
+    }
 
-                        if (isInDomain(mail, d) && isInDomain(targetMail, d)) {
-                            if (login == null && mail.equals(targetMail)) {
-                                login = mail;
-                                orgUnit = d.getOrgUnit();
-                            }
-                        }
+    private List<LdapUser> getLdapUsers(Msgs msgs) throws LDAPException {
+        List<LdapUser> users = new ArrayList<>();
+        getLdapUsers(msgs, users::add);
+        return users;
+    }
 
-                        // mail should be only in one domain
-                        break;
+    private void getLdapUsers(Msgs msgs, Consumer<LdapUser> consumer) throws LDAPException {
+        withLdap((connection) -> {
+            // entries are converted as soon as they arrive and are not collected in search result
+            SearchResultListener listener = new SearchResultListener() {
+                @Override
+                public void searchEntryReturned(SearchResultEntry searchEntry) {
+                    LdapUser u = mapper.getLdapUser(searchEntry, msgs);
+                    if (u != null) {
+                        consumer.accept(u);
                     }
                 }
-            }
-        }
 
-        attr = e.getAttribute("mailAlternateAddress");
-        if (attr != null) {
-            for (String mail : attr.getValues()) {
-                for (Domain d : domains) {
-                    if (isInDomain(mail, d)) {
-                        mails.add(mail);
-                        break;
-                    }
+                @Override
+                public void searchReferenceReturned(SearchResultReference searchReference) {
+                    // do nothing
                 }
-            }
-        }
+            };
 
-        if (login == null) {
-            if (!failed && mails.size() > 0) {
-                LOG.warn("User should be controlled by domains, but it is not: {}", e.getDN());
-                msgs.warn("user should be controlled, but it is not: %s", e.getDN());
-            }
+            int pageSize = ldapConfig.getPageSize();
+            int entryCount = 0;
+            ASN1OctetString pageCookie = null;
 
-            return null;
-        }
+            while (true) {
+                SearchRequest req = new SearchRequest(listener,
+                        ldapConfig.getLoginDn(),
+                        SearchScope.SUB,
+                        ldapFilter,
+                        mapper.getLdapAttributes());
 
-        mails.remove(login);
+                if (pageSize > 0) {
+                    // not critical - servers without paging support will return everything at once
+                    req.addControl(new SimplePagedResultsControl(pageSize, pageCookie, false));
+                }
 
-        String surname = e.getAttributeValue("sn");
-        String name = e.getAttributeValue("givenName");
-        String password = e.getAttributeValue("userPassword");
-        String phone = e.getAttributeValue("mobile");
-        String lastModify = e.getAttributeValue("modifyTimestamp") + '-' + SYNC_VERSION;
+                SearchResult sr = connection.search(req);
+                entryCount += sr.getEntryCount();
 
-        boolean searchable = !"hidden".equals(employeeType);
+                SimplePagedResultsControl c = pageSize > 0 ? SimplePagedResultsControl.get(sr) : null;
+                if (c == null || !c.moreResultsToReturn()) {
+                    break;
+                }
 
-        return new LdapUser(
-                name, surname, login, mails, password,
-                phone, orgUnit, searchable, failed,
-                lastModify, true
-        );
-    }
+                pageCookie = c.getCookie();
+            }
 
-    private LDAPConnection connect() throws LDAPException {
-        return ldapHelper.connect(ldapConfig.getBindDn(), ldapConfig.getBindPw());
+            LOG.debug("Found {} ldap entries", entryCount);
+
+            return null;
+        });
     }
 
-    private List<LdapUser> getLdapUsers(Msgs msgs) throws LDAPException {
-        try (LDAPConnection connection = connect()) {
-            List<LdapUser> users = new ArrayList<>();
+    private List<LdapUser> getLdapUsers(List<? extends Entry> entries, Msgs msgs) {
+        List<LdapUser> users = new ArrayList<>();
 
-            SearchResult sr = connection.search(ldapConfig.getLoginDn(),
-                    SearchScope.SUB,
-                    Filter.createEqualityFilter("objectClass", "inetOrgPerson"),
-                    "*",
-                    SearchRequest.ALL_OPERATIONAL_ATTRIBUTES);
+        entries.forEach((e) -> {
+            LdapUser u = mapper.getLdapUser(e, msgs);
+            if (u != null) {
+                users.add(u);
+            }
+        });
 
-            LOG.debug("Found {} ldap entries", sr.getEntryCount());
+        return users;
+    }
 
-            sr.getSearchEntries().forEach((e) -> {
-                LdapUser u = getLdapUser(e, msgs);
-                if (u != null) {
-                    users.add(u);
+    /**
+     * Ldap users with given logins, mirror is used when it is ready.
+     */
+    private List<LdapUser> findLdapUsers(Collection<String> logins, Msgs msgs) throws LDAPException {
+        Set<String> wanted = new HashSet<>(logins);
+        List<Entry> entries = new ArrayList<>();
+
+        if (ldapMirror != null && ldapMirror.isReady()) {
+            for (Entry e : ldapMirror.getEntries()) {
+                Attribute mail = e.getAttribute("mail");
+                if (mail != null && Arrays.stream(mail.getValues()).anyMatch(wanted::contains)) {
+                    entries.add(e);
                 }
-            });
-
-            return users;
+            }
+        } else {
+            List<String> all = new ArrayList<>(wanted);
+            for (int from = 0; from < all.size(); from += LOGIN_FILTER_SIZE) {
+                Filter filter = Filter.createANDFilter(ldapFilter, Filter.createORFilter(
+                        all.subList(from, Math.min(from + LOGIN_FILTER_SIZE, all.size())).stream()
+                                .map((l) -> Filter.createEqualityFilter("mail", l))
+                                .collect(Collectors.toList())));
+
+                entries.addAll(withLdap((connection) -> connection.search(ldapConfig.getLoginDn(), SearchScope.SUB,
+                        filter, mapper.getLdapAttributes()).getSearchEntries()));
+            }
         }
+
+        List<LdapUser> users = getLdapUsers(entries, msgs);
+        // entry may have login only as additional mail
+        users.removeIf((u) -> !wanted.contains(u.login));
+        return users;
     }
 
     private void closeSearch() {
@@ -768,6 +1216,69 @@ public class GSuiteSyncService {
         if (cookie != null) {
             this.cookie = cookie;
             LOG.debug("new cookie: {}", cookie.stringValue());
+
+            // mirror is saved whole, so it is saved only when refresh is done and on shutdown
+            if (ldapMirror == null) {
+                scheduleLdapStateSave();
+            }
+        }
+    }
+
+    private void loadLdapState() {
+        if (ldapState == null) {
+            return;
+        }
+
+        try {
+            if (ldapState.load()) {
+                if (ldapMirror != null) {
+                    // cookie without mirrored entries is useless for mirror
+                    if (ldapState.getEntries() != null) {
+                        cookie = ldapState.getCookie();
+                        ldapMirror.restore(ldapState.getEntries());
+                        LOG.info("Loaded ldap state: {} entries", ldapState.getEntries().size());
+                    }
+                } else {
+                    cookie = ldapState.getCookie();
+                    LOG.info("Loaded ldap state");
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error loading ldap state, full refresh will be done", e);
+            cookie = null;
+        }
+    }
+
+    private void scheduleLdapStateSave() {
+        if (ldapState != null && !ldapStateSaveScheduled.getAndSet(true)) {
+            scheduler.schedule(this::saveLdapState, ldapConfig.getStateSaveDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void saveLdapState() {
+        ldapStateSaveScheduled.set(false);
+
+        // cookie is taken first - mirror may only be newer than cookie, and changes will be resent by server
+        ASN1OctetString c = cookie;
+        if (c == null) {
+            return;
+        }
+
+        Map<UUID, Entry> entries = null;
+        if (ldapMirror != null) {
+            // partial mirror with newer cookie would lose missing entries after restart, previous state is kept
+            entries = ldapMirror.getReadyEntryMap();
+            if (entries == null) {
+                LOG.debug("Ldap mirror is not ready, state is not saved");
+                return;
+            }
+        }
+
+        try {
+            ldapState.save(c, entries);
+            LOG.debug("Ldap state saved");
+        } catch (Exception e) {
+            LOG.warn("Error saving ldap state", e);
         }
     }
 
@@ -780,14 +1291,22 @@ public class GSuiteSyncService {
         try {
             connection = connect();
 
-            AsyncSearchResultListener listener = new AsyncSearchResultListener() {
+            class Listener implements AsyncSearchResultListener, IntermediateResponseListener {
+                private static final long serialVersionUID = 1L;
+
                 @Override
                 public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
                     LOG.info("Search result received -> connection closed");
 
-                    ContentSyncDoneControl c = (ContentSyncDoneControl) searchResult.getResponseControl(ContentSyncDoneControl.SYNC_DONE_OID);
-                    if (c != null) {
-                        updateCookie(c.getCookie());
+                    if (searchResult.getResultCode() == ResultCode.E_SYNC_REFRESH_REQUIRED) {
+                        // stored cookie is too old, full refresh is needed
+                        LOG.warn("Ldap sync cookie is rejected, full refresh will be done");
+                        cookie = null;
+                    } else {
+                        ContentSyncDoneControl c = (ContentSyncDoneControl) searchResult.getResponseControl(ContentSyncDoneControl.SYNC_DONE_OID);
+                        if (c != null) {
+                            updateCookie(c.getCookie());
+                        }
                     }
 
                     closeSearch();
@@ -800,41 +1319,108 @@ public class GSuiteSyncService {
 
                     ContentSyncStateControl c = (ContentSyncStateControl) searchEntry.getControl(ContentSyncStateControl.SYNC_STATE_OID);
                     if (c != null) {
+                        if (ldapMirror != null) {
+                            ldapMirror.apply(c.getEntryUUID(), c.getState(), searchEntry);
+                        }
+
                         updateCookie(c.getCookie());
+                    } else if (ldapMirror != null) {
+                        LOG.warn("Ldap entry without sync state, mirror can't be updated: {}", searchEntry.getDN());
+                    }
+
+                    // in mirror mode sync is scheduled when initial refresh is done
+                    if (ldapMirror == null || ldapMirror.isReady()) {
+                        syncScheduler.onChange();
+                    }
+                }
+
+                @Override
+                public void intermediateResponseReturned(IntermediateResponse intermediateResponse) {
+                    ContentSyncInfoIntermediateResponse r;
+                    try {
+                        r = ContentSyncInfoIntermediateResponse.decode(intermediateResponse);
+                    } catch (LDAPException e) {
+                        LOG.warn("Unexpected intermediate response: {}", intermediateResponse);
+                        return;
                     }
 
-                    scheduleSync(0);
+                    boolean refreshDone = false;
+
+                    switch (r.getType()) {
+                        case SYNC_ID_SET:
+                            if (ldapMirror != null) {
+                                ldapMirror.applyIdSet(r.getEntryUUIDs(), r.refreshDeletes());
+                            }
+                            break;
+
+                        case REFRESH_PRESENT:
+                            if (ldapMirror != null) {
+                                ldapMirror.endPresentPhase();
+                            }
+                            refreshDone = r.refreshDone();
+                            break;
+
+                        case REFRESH_DELETE:
+                            refreshDone = r.refreshDone();
+                            break;
+                    }
+
+                    updateCookie(r.getCookie());
+
+                    if (refreshDone) {
+                        LOG.info("Ldap refresh done");
+
+                        if (ldapMirror != null) {
+                            ldapMirror.endRefresh();
+                            LOG.info("Ldap mirror is ready: {} entries", ldapMirror.size());
+                            scheduleLdapStateSave();
+                        }
+
+                        syncScheduler.onChange();
+                    }
                 }
 
                 @Override
                 public void searchReferenceReturned(SearchResultReference searchReference) {
                     // do nothing
                 }
-            };
+            }
+
+            Listener listener = new Listener();
 
             SearchRequest req = new SearchRequest(listener,
                     ldapConfig.getLoginDn(),
                     SearchScope.SUB,
-                    Filter.createEqualityFilter("objectClass", "inetOrgPerson"),
-                    "*",
-                    SearchRequest.ALL_OPERATIONAL_ATTRIBUTES);
+                    ldapFilter,
+                    mapper.getLdapAttributes());
 
+            req.setIntermediateResponseListener(listener);
+
+            // initial content is received within the same request, refresh end is signaled with sync info message
             req.addControl(new ContentSyncRequestControl(
-                    cookie == null ? ContentSyncRequestMode.REFRESH_ONLY : ContentSyncRequestMode.REFRESH_AND_PERSIST,
+                    ContentSyncRequestMode.REFRESH_AND_PERSIST,
                     cookie,
                     false
             ));
 
+            if (ldapMirror != null) {
+                ldapMirror.beginRefresh(cookie != null);
+            }
+
             reqId = connection.asyncSearch(req);
 
             listenConnection = connection;
             listenReqId = reqId;
 
+            ldapReconnects.inc("ok");
+
             LOG.info("Connect to ldap succeeded");
         } catch (Exception e) {
             LOG.error("Error connecting to LDAP", e);
             closeSearch(connection, reqId);
 
+            ldapReconnects.inc("error");
+
             scheduleSetupLdapListener();
         }
     }
@@ -0,0 +1,132 @@
+package com.kvaster.gsuite;
+
+import java.util.List;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.kvaster.utils.metrics.MetricsRegistry;
+
+/**
+ * Counts google api http calls and their latencies by api method and status.
+ */
+public class GoogleApiMetrics {
+    private static final String API_PREFIX = "directory/v1/";
+
+    private final MetricsRegistry.Counter calls;
+    private final MetricsRegistry.Summary latency;
+
+    public GoogleApiMetrics(MetricsRegistry registry) {
+        calls = registry.counter("gsuite_api_calls_total",
+                "Google api calls (including calls inside batch requests)", "method", "status");
+        latency = registry.summary("gsuite_api_http_seconds",
+                "Google api http request latency", "method", "status");
+    }
+
+    /**
+     * Wrap request initializer: each http attempt is measured separately.
+     */
+    public HttpRequestInitializer wrap(HttpRequestInitializer initializer) {
+        return (request) -> {
+            initializer.initialize(request);
+
+            String method = describe(request.getRequestMethod(), request.getUrl().getRawPath());
+            long[] start = new long[1];
+
+            HttpExecuteInterceptor interceptor = request.getInterceptor();
+            request.setInterceptor((r) -> {
+                if (interceptor != null) {
+                    interceptor.intercept(r);
+                }
+                start[0] = System.nanoTime();
+            });
+
+            HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+            request.setResponseInterceptor((response) -> {
+                String status = Integer.toString(response.getStatusCode());
+                record(method, status, start[0]);
+
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            });
+
+            HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+            request.setIOExceptionHandler((r, supportsRetry) -> {
+                record(method, "io_error", start[0]);
+                return ioExceptionHandler != null && ioExceptionHandler.handleIOException(r, supportsRetry);
+            });
+        };
+    }
+
+    private void record(String method, String status, long startNanos) {
+        calls.inc(method, status);
+        latency.observeNanos(startNanos, method, status);
+    }
+
+    /**
+     * Record result of call executed inside batch request.
+     */
+    public void recordBatchCall(String method, int status) {
+        calls.inc(method, Integer.toString(status));
+    }
+
+    /**
+     * Describe api method by http method and path, e.g. 'users.list', 'users.aliases.delete'.
+     *
+     * @param httpMethod - http method
+     * @param path       - url path or api uri template
+     */
+    public static String describe(String httpMethod, String path) {
+        if (path.contains("/batch/")) {
+            return "batch";
+        }
+
+        int idx = path.indexOf(API_PREFIX);
+        if (idx >= 0) {
+            path = path.substring(idx + API_PREFIX.length());
+        }
+
+        List<String> parts = List.of(path.split("/"));
+        int size = parts.size();
+
+        StringBuilder sb = new StringBuilder();
+        // resource names are on even positions, keys are on odd positions
+        int last = size % 2 == 0 && "POST".equals(httpMethod) ? size - 1 : size;
+        for (int i = 0; i < last; i += 2) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(parts.get(i));
+        }
+
+        sb.append('.');
+
+        if (size % 2 == 1) {
+            // collection
+            sb.append("GET".equals(httpMethod) ? "list" : "POST".equals(httpMethod) ? "insert" : httpMethod.toLowerCase());
+        } else {
+            switch (httpMethod) {
+                case "GET":
+                    sb.append("get");
+                    break;
+
+                case "PUT":
+                    sb.append("update");
+                    break;
+
+                case "POST":
+                    // custom action, e.g. users/watch
+                    sb.append(parts.get(size - 1));
+                    break;
+
+                default:
+                    sb.append(httpMethod.toLowerCase());
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -4,29 +4,62 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.admin.directory.Directory;
 import com.google.api.services.admin.directory.DirectoryScopes;
-import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.http.HttpTransportFactory;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.kvaster.utils.http.JdkHttpTransport;
 
 public class GoogleHelper {
-    public static Directory createDirectoryService(File credentialsFile, String delegatedUser)
-            throws IOException {
-        HttpTransport httpTransport = new NetHttpTransport();
-        JacksonFactory jsonFactory = new JacksonFactory();
+    public static HttpTransport createHttpTransport(GSuiteSyncConfig.GSuiteConfig gc) {
+        switch (gc.getHttpTransport()) {
+            case "net":
+                return new NetHttpTransport();
 
-        GoogleCredentials credentials = loadServiceCredentials(credentialsFile, delegatedUser, () -> httpTransport);
+            case "jdk":
+                return new JdkHttpTransport(gc.getHttp2(), gc.getHttpConnectTimeoutMillis(), gc.getHttpPoolSize(),
+                        gc.getHttpKeepAliveSeconds());
 
+            default:
+                throw new IllegalArgumentException("Unknown http transport: " + gc.getHttpTransport());
+        }
+    }
+
+    /**
+     * Load service accounts, all of them should have domain wide delegation for directory scope.
+     */
+    public static CredentialsPool createCredentialsPool(
+            List<File> credentialsFiles, String delegatedUser, HttpTransport httpTransport, long queriesPerMinute,
+            long refreshBeforeMillis, ScheduledExecutorService refresher
+    ) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<GoogleCredentials> credentials = new ArrayList<>();
+
+        for (File file : credentialsFiles) {
+            names.add(file.getName());
+            credentials.add(loadServiceCredentials(file, delegatedUser, () -> httpTransport));
+        }
+
+        return new CredentialsPool(names, credentials, queriesPerMinute, refreshBeforeMillis, refresher);
+    }
+
+    public static Directory createDirectoryService(
+            HttpTransport httpTransport, HttpRequestInitializer credentials, GoogleApiMetrics metrics,
+            GoogleRetry retry
+    ) {
         return new Directory.Builder(
                 httpTransport,
-                jsonFactory,
-                new HttpCredentialsAdapter(credentials)
+                new JacksonFactory(),
+                metrics.wrap(retry.wrap(credentials))
         ).setApplicationName("Master Sync Manager").build();
     }
 
@@ -0,0 +1,178 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries only failed google call with jittered exponential backoff, so transient throttling does not fail
+ * whole sync. 429 and 5xx are retried on http level (Retry-After is respected), 403 with rate limit reason
+ * is detected by error details, so it is retried on request level.
+ * <p>
+ * Operations inside batch are not retried here: their responses are handled while batch response is parsed,
+ * so sleeping would block whole batch and each retry would be new batch round. They are retried by
+ * {@link DirectoryBatch} only.
+ */
+public class GoogleRetry {
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleRetry.class);
+
+    private static final double RANDOMIZATION_FACTOR = 0.5;
+    private static final double MULTIPLIER = 2;
+    // http request retries are also limited by count, max elapsed time is the real limit
+    private static final int MAX_HTTP_RETRIES = 50;
+
+    private final int initialDelayMillis;
+    private final int maxDelayMillis;
+    private final int maxElapsedMillis;
+
+    public GoogleRetry(long initialDelayMillis, long maxDelayMillis, long maxElapsedMillis) {
+        this.initialDelayMillis = (int) Math.min(initialDelayMillis, Integer.MAX_VALUE);
+        this.maxDelayMillis = (int) Math.min(maxDelayMillis, Integer.MAX_VALUE);
+        this.maxElapsedMillis = (int) Math.min(maxElapsedMillis, Integer.MAX_VALUE);
+    }
+
+    private ExponentialBackOff newBackOff() {
+        return new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(initialDelayMillis)
+                .setMaxIntervalMillis(maxDelayMillis)
+                .setMaxElapsedTimeMillis(maxElapsedMillis)
+                .setRandomizationFactor(RANDOMIZATION_FACTOR)
+                .setMultiplier(MULTIPLIER)
+                .build();
+    }
+
+    /**
+     * Wrap request initializer: its unsuccessful response handler (e.g. token refresh on 401) is called first.
+     */
+    public HttpRequestInitializer wrap(HttpRequestInitializer initializer) {
+        return (request) -> {
+            initializer.initialize(request);
+
+            if (maxElapsedMillis <= 0) {
+                return;
+            }
+
+            request.setNumberOfRetries(Math.max(request.getNumberOfRetries(), MAX_HTTP_RETRIES));
+
+            HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+            ExponentialBackOff backOff = newBackOff();
+
+            request.setUnsuccessfulResponseHandler((r, response, supportsRetry) -> {
+                if (handler != null && handler.handleResponse(r, response, supportsRetry)) {
+                    return true;
+                }
+
+                // batch part gets fake response parsed from batch content, not response of its own request
+                if (response.getRequest() != r) {
+                    return false;
+                }
+
+                int status = response.getStatusCode();
+                if (!supportsRetry || (status != 429 && status / 100 != 5)) {
+                    return false;
+                }
+
+                long delay = nextDelay(backOff, retryAfterMillis(response));
+                if (delay == BackOff.STOP) {
+                    return false;
+                }
+
+                LOG.warn("Google api returned {} for {} {}, retrying in {} ms",
+                        status, r.getRequestMethod(), r.getUrl().getRawPath(), delay);
+                sleep(delay);
+                return true;
+            });
+        };
+    }
+
+    /**
+     * Execute request and retry it while it fails with rate limit 403.
+     */
+    public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+        if (maxElapsedMillis <= 0) {
+            return request.execute();
+        }
+
+        ExponentialBackOff backOff = newBackOff();
+
+        while (true) {
+            try {
+                return request.execute();
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() != 403 || !DirectoryBatch.isTemporary(e.getDetails())) {
+                    throw e;
+                }
+
+                long delay = nextDelay(backOff, 0);
+                if (delay == BackOff.STOP) {
+                    throw e;
+                }
+
+                LOG.warn("Google api rate limit exceeded, retrying in {} ms", delay);
+                sleep(delay);
+            }
+        }
+    }
+
+    private long nextDelay(ExponentialBackOff backOff, long minDelay) throws IOException {
+        long delay = backOff.nextBackOffMillis();
+        if (delay == BackOff.STOP) {
+            return BackOff.STOP;
+        }
+
+        delay = Math.max(delay, minDelay);
+        if (backOff.getElapsedTimeMillis() + delay > maxElapsedMillis) {
+            return BackOff.STOP;
+        }
+
+        return delay;
+    }
+
+    /**
+     * @return delay from Retry-After header (seconds or http date) or 0 if there is no such header
+     */
+    static long retryAfterMillis(HttpResponse response) {
+        String value = response.getHeaders().getFirstHeaderStringValue("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+
+        value = value.trim();
+
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not a number - should be http date
+        }
+
+        try {
+            ZonedDateTime time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, time.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            LOG.debug("Unknown Retry-After value: {}", value);
+            return 0;
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Sleeper.DEFAULT.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+}
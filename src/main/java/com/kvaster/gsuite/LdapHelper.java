@@ -2,6 +2,7 @@ package com.kvaster.gsuite;
 
 import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.EnumSet;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -9,9 +10,15 @@ import javax.net.ssl.SSLSocketFactory;
 import com.unboundid.ldap.sdk.BindResult;
 import com.unboundid.ldap.sdk.ExtendedRequest;
 import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.OperationType;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.StartTLSPostConnectProcessor;
 import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
 import com.unboundid.util.ssl.SSLUtil;
 
@@ -23,6 +30,8 @@ public class LdapHelper {
     private final int ldapPort;
     private final boolean isLdaps;
 
+    // one ssl context for all connections - tls sessions are cached and resumed by new connections
+    private final SSLContext sslContext;
     private final ExtendedRequest startTlsExtRequest;
     private final SSLSocketFactory sslSocketFactory;
 
@@ -41,9 +50,9 @@ public class LdapHelper {
         this.isLdaps = isLdaps;
 
         SSLUtil sslUtil = new SSLUtil();
-        SSLContext context = sslUtil.createSSLContext();
-        startTlsExtRequest = new StartTLSExtendedRequest(context);
-        sslSocketFactory = sslUtil.createSSLSocketFactory();
+        sslContext = sslUtil.createSSLContext();
+        startTlsExtRequest = new StartTLSExtendedRequest(sslContext);
+        sslSocketFactory = sslContext.getSocketFactory();
     }
 
     public LDAPConnection connect() throws LDAPException {
@@ -70,6 +79,45 @@ public class LdapHelper {
         }
     }
 
+    /**
+     * Create pool of authenticated connections. Failed connects on creation are not fatal,
+     * connections are created on demand.
+     *
+     * @param bindDn                    - bind dn
+     * @param bindPw                    - bind password
+     * @param size                      - max number of connections
+     * @param healthCheckIntervalMillis - interval for background health check of idle connections
+     * @param maxConnectionAgeMillis    - connections older than this are replaced, 0 - unlimited
+     */
+    public LDAPConnectionPool createPool(
+            String bindDn, String bindPw, int size, long healthCheckIntervalMillis, long maxConnectionAgeMillis
+    ) throws LDAPException {
+        SingleServerSet serverSet = isLdaps
+                ? new SingleServerSet(ldapHost, ldapPort, sslSocketFactory)
+                : new SingleServerSet(ldapHost, ldapPort);
+
+        LDAPConnectionPool pool = new LDAPConnectionPool(
+                serverSet,
+                new SimpleBindRequest(bindDn, bindPw),
+                1,
+                size,
+                isLdaps ? null : new StartTLSPostConnectProcessor(sslContext),
+                false
+        );
+
+        pool.setConnectionPoolName("ldap");
+        pool.setCreateIfNecessary(true);
+        pool.setMaxConnectionAgeMillis(maxConnectionAgeMillis);
+        pool.setRetryFailedOperationsDueToInvalidConnections(EnumSet.of(OperationType.SEARCH));
+
+        // root dse is checked for idle connections in background and for connections after errors
+        pool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck(
+                "", 10000, false, false, false, false, true, true));
+        pool.setHealthCheckIntervalMillis(healthCheckIntervalMillis);
+
+        return pool;
+    }
+
     public LDAPConnection connect(String bindDn, String bindPw) throws LDAPException {
         LDAPConnection c = connect();
 
@@ -0,0 +1,156 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.AssertionRequestControl;
+
+/**
+ * Leases stored as applicationProcess entries under configured dn: cn is lease key, description is
+ * expiration time and owner. Lease is updated with single modify which deletes current value and adds new one,
+ * so concurrent update fails if value was changed by other node. Value is added to entry without value only
+ * with assertion (RFC 4528) that it is still absent.
+ */
+public class LdapLeaseStore implements LeaseStore {
+    private static final String OBJECT_CLASS = "applicationProcess";
+    private static final String VALUE_ATTR = "description";
+
+    private final LDAPConnectionPool pool;
+    private final String baseDn;
+
+    /**
+     * @param pool   - connections of user with write access to lease entries
+     * @param baseDn - parent entry of leases, it should exist
+     */
+    public LdapLeaseStore(LDAPConnectionPool pool, String baseDn) {
+        this.pool = pool;
+        this.baseDn = baseDn;
+    }
+
+    private String dn(String key) throws LDAPException {
+        return new DN(new RDN("cn", key), new DN(baseDn)).toString();
+    }
+
+    private static String value(String owner, long expiresMillis) {
+        return expiresMillis + " " + owner;
+    }
+
+    private static Lease parse(Entry e) {
+        String key = e.getAttributeValue("cn");
+        String value = e.getAttributeValue(VALUE_ATTR);
+        int space = value == null ? -1 : value.indexOf(' ');
+        if (key == null || space < 0) {
+            return null;
+        }
+
+        try {
+            return new Lease(key, value.substring(space + 1), Long.parseLong(value.substring(0, space)));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public List<Lease> list(String prefix) throws IOException {
+        try {
+            List<Lease> leases = new ArrayList<>();
+
+            Filter filter = Filter.createANDFilter(
+                    Filter.createEqualityFilter("objectClass", OBJECT_CLASS),
+                    Filter.createSubstringFilter("cn", prefix, null, null));
+
+            for (SearchResultEntry e : pool.search(baseDn, SearchScope.ONE, filter, "cn", VALUE_ATTR)
+                    .getSearchEntries()) {
+                Lease lease = parse(e);
+                if (lease != null) {
+                    leases.add(lease);
+                }
+            }
+
+            return leases;
+        } catch (LDAPException e) {
+            throw new IOException("Error listing leases", e);
+        }
+    }
+
+    @Override
+    public boolean acquire(String key, String owner, long expiresMillis) throws IOException {
+        try {
+            String dn = dn(key);
+            String value = value(owner, expiresMillis);
+
+            SearchResultEntry e = pool.getEntry(dn, "cn", VALUE_ATTR);
+            if (e == null) {
+                pool.add(new Entry(dn,
+                        new Attribute("objectClass", OBJECT_CLASS),
+                        new Attribute("cn", key),
+                        new Attribute(VALUE_ATTR, value)));
+                return true;
+            }
+
+            Lease current = parse(e);
+            if (current != null && current.isValid(System.currentTimeMillis()) && !owner.equals(current.owner)) {
+                return false;
+            }
+
+            replace(dn, e.getAttributeValue(VALUE_ATTR), value);
+            return true;
+        } catch (LDAPException e) {
+            if (e.getResultCode() == ResultCode.ENTRY_ALREADY_EXISTS
+                    || e.getResultCode() == ResultCode.NO_SUCH_ATTRIBUTE
+                    || e.getResultCode() == ResultCode.ASSERTION_FAILED) {
+                // other node was faster
+                return false;
+            }
+            throw new IOException("Error acquiring lease " + key, e);
+        }
+    }
+
+    @Override
+    public void release(String key, String owner) throws IOException {
+        try {
+            String dn = dn(key);
+
+            SearchResultEntry e = pool.getEntry(dn, "cn", VALUE_ATTR);
+            Lease current = e == null ? null : parse(e);
+            if (current != null && owner.equals(current.owner)) {
+                replace(dn, e.getAttributeValue(VALUE_ATTR), value(owner, 0));
+            }
+        } catch (LDAPException e) {
+            if (e.getResultCode() != ResultCode.NO_SUCH_ATTRIBUTE) {
+                throw new IOException("Error releasing lease " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Compare and set: modify fails with no such attribute if current value was changed, or with assertion failed
+     * if value was added to entry without value. Plain add would just add second value of multi-valued attribute.
+     */
+    private void replace(String dn, String current, String value) throws LDAPException {
+        if (current == null) {
+            ModifyRequest request = new ModifyRequest(dn, new Modification(ModificationType.ADD, VALUE_ATTR, value));
+            request.addControl(new AssertionRequestControl(
+                    Filter.createNOTFilter(Filter.createPresenceFilter(VALUE_ATTR))));
+            pool.modify(request);
+        } else {
+            pool.modify(dn,
+                    new Modification(ModificationType.DELETE, VALUE_ATTR, current),
+                    new Modification(ModificationType.ADD, VALUE_ATTR, value));
+        }
+    }
+}
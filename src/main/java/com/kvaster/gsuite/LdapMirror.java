@@ -0,0 +1,109 @@
+package com.kvaster.gsuite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+
+/**
+ * Local copy of ldap login subtree. It is filled and kept current by content sync (syncrepl) stream,
+ * so sync does not need to search whole tree on each change.
+ */
+public class LdapMirror {
+    private final Map<UUID, Entry> entries = new HashMap<>();
+
+    // entries reported during refresh present phase, everything else should be removed at the end of phase
+    private Set<UUID> present;
+    private boolean ready;
+
+    /**
+     * Called before new sync request is sent.
+     *
+     * @param resume - true if request continues previous content (we have cookie), false for full refresh
+     */
+    public synchronized void beginRefresh(boolean resume) {
+        if (!resume) {
+            entries.clear();
+        }
+
+        present = new HashSet<>();
+        ready = false;
+    }
+
+    public synchronized void apply(UUID uuid, ContentSyncState state, Entry entry) {
+        switch (state) {
+            case PRESENT:
+                // entry is not changed
+                break;
+
+            case ADD:
+            case MODIFY:
+                entries.put(uuid, entry);
+                break;
+
+            case DELETE:
+                entries.remove(uuid);
+                return;
+        }
+
+        if (present != null) {
+            present.add(uuid);
+        }
+    }
+
+    public synchronized void applyIdSet(List<UUID> uuids, boolean deletes) {
+        if (deletes) {
+            uuids.forEach(entries::remove);
+        } else if (present != null) {
+            present.addAll(uuids);
+        }
+    }
+
+    /**
+     * End of refresh present phase - all entries which were not reported are deleted.
+     */
+    public synchronized void endPresentPhase() {
+        if (present != null) {
+            entries.keySet().retainAll(present);
+            present = new HashSet<>();
+        }
+    }
+
+    public synchronized void endRefresh() {
+        present = null;
+        ready = true;
+    }
+
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return copy of entries or null if refresh is not done yet and mirror may be partial
+     */
+    public synchronized Map<UUID, Entry> getReadyEntryMap() {
+        return ready ? new HashMap<>(entries) : null;
+    }
+
+    /**
+     * Restore entries from durable state, mirror is not ready until refresh is done.
+     */
+    public synchronized void restore(Map<UUID, Entry> entries) {
+        this.entries.clear();
+        this.entries.putAll(entries);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
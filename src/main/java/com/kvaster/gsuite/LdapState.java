@@ -0,0 +1,139 @@
+package com.kvaster.gsuite;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.kvaster.utils.io.AtomicFile;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+
+/**
+ * Durable content sync state: cookie and mirrored entries. Cookie is valid only together with entries
+ * received before it, so both are always written at once.
+ */
+public class LdapState {
+    private static final int MAGIC = 0x47534c53; // GSLS
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    private ASN1OctetString cookie;
+    private Map<UUID, Entry> entries;
+
+    public LdapState(File file) {
+        this.file = file;
+    }
+
+    public ASN1OctetString getCookie() {
+        return cookie;
+    }
+
+    /**
+     * @return mirrored entries or null if state was saved without mirror
+     */
+    public Map<UUID, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return false if there is no stored state
+     */
+    public boolean load() throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Unknown ldap state format: " + file);
+            }
+
+            byte[] c = readBytes(is);
+            cookie = c == null ? null : new ASN1OctetString(c);
+
+            int count = is.readInt();
+            entries = count < 0 ? null : new HashMap<>(count * 2);
+
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(is.readLong(), is.readLong());
+
+                String[] lines = new String[is.readInt()];
+                for (int l = 0; l < lines.length; l++) {
+                    lines[l] = new String(readBytes(is), StandardCharsets.UTF_8);
+                }
+
+                entries.put(uuid, LDIFReader.decodeEntry(lines));
+            }
+
+            return true;
+        } catch (LDIFException e) {
+            throw new IOException("Error decoding ldap state entry", e);
+        }
+    }
+
+    /**
+     * @param cookie  - content sync cookie
+     * @param entries - mirrored entries, null if mirror is not used
+     */
+    public void save(ASN1OctetString cookie, Map<UUID, Entry> entries) throws IOException {
+        AtomicFile.write(file, (out) -> {
+            DataOutputStream os = new DataOutputStream(out);
+
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+
+            writeBytes(os, cookie == null ? null : cookie.getValue());
+
+            if (entries == null) {
+                os.writeInt(-1);
+                os.flush();
+                return;
+            }
+
+            os.writeInt(entries.size());
+            for (Map.Entry<UUID, Entry> e : entries.entrySet()) {
+                os.writeLong(e.getKey().getMostSignificantBits());
+                os.writeLong(e.getKey().getLeastSignificantBits());
+
+                // no line wrapping
+                String[] lines = e.getValue().toLDIF(0);
+                os.writeInt(lines.length);
+                for (String line : lines) {
+                    writeBytes(os, line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            os.flush();
+        });
+    }
+
+    private static byte[] readBytes(DataInputStream is) throws IOException {
+        int size = is.readInt();
+        if (size < 0) {
+            return null;
+        }
+
+        byte[] data = new byte[size];
+        is.readFully(data);
+        return data;
+    }
+
+    private static void writeBytes(DataOutputStream os, byte[] data) throws IOException {
+        if (data == null) {
+            os.writeInt(-1);
+        } else {
+            os.writeInt(data.length);
+            os.write(data);
+        }
+    }
+}
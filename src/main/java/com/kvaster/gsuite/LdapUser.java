@@ -0,0 +1,57 @@
+package com.kvaster.gsuite;
+
+import java.util.Set;
+
+/**
+ * User data mapped from ldap entry.
+ */
+class LdapUser {
+    final String givenName;
+    final String surName;
+    final String login;
+    final Set<String> aliases;
+    final String password;
+    final String phone;
+    final String orgUnit;
+    final boolean searchable;
+    final boolean failed;
+    final String lastModify;
+    final String fingerprint;
+    final boolean needSync;
+
+    /**
+     * Use data from LDAP
+     *
+     * @param givenName   - user given name
+     * @param surName     - user family name
+     * @param login       - login - main email
+     * @param aliases     - email aliases (only for controlled domains)
+     * @param password    - password (it shoul be only SHA-1 hash in order to be able to sync with google)
+     * @param phone       - phone number
+     * @param orgUnit     - organization unit in gsuite
+     * @param searchable  - should we be able to search for contact ?
+     * @param failed      - is this failed employee ?
+     * @param lastModify  - last modify time from ldap
+     * @param fingerprint - hash of all fields mapped to gsuite
+     * @param needSync    - should we sync this user with gsuite
+     */
+    LdapUser(
+            String givenName, String surName, String login, Set<String> aliases,
+            String password, String phone, String orgUnit, boolean searchable,
+            boolean failed, String lastModify, String fingerprint, boolean needSync
+    ) {
+        this.givenName = givenName;
+        this.surName = surName;
+        this.login = login;
+        this.aliases = aliases;
+        this.password = password;
+        this.phone = phone;
+        this.orgUnit = orgUnit;
+        this.searchable = searchable;
+        this.failed = failed;
+
+        this.lastModify = lastModify;
+        this.fingerprint = fingerprint;
+        this.needSync = needSync;
+    }
+}
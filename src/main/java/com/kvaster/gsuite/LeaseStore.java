@@ -0,0 +1,44 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shared storage of time limited leases. Lease is taken only if it is free, expired or already held by the same
+ * owner, check and update are atomic for all nodes using the store. Expiration is compared with local clock,
+ * so node clocks should be synchronized.
+ */
+public interface LeaseStore {
+    class Lease {
+        final String key;
+        final String owner;
+        final long expiresMillis;
+
+        Lease(String key, String owner, long expiresMillis) {
+            this.key = key;
+            this.owner = owner;
+            this.expiresMillis = expiresMillis;
+        }
+
+        boolean isValid(long now) {
+            return expiresMillis > now;
+        }
+    }
+
+    /**
+     * @return leases with keys starting with prefix, expired leases are included
+     */
+    List<Lease> list(String prefix) throws IOException;
+
+    /**
+     * Take or renew lease.
+     *
+     * @return true if lease is held by owner until given time
+     */
+    boolean acquire(String key, String owner, long expiresMillis) throws IOException;
+
+    /**
+     * Release lease if it is held by owner.
+     */
+    void release(String key, String owner) throws IOException;
+}
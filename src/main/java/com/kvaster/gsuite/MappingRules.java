@@ -0,0 +1,128 @@
+package com.kvaster.gsuite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.kvaster.gsuite.GSuiteSyncConfig.MappingConfig;
+import com.unboundid.ldap.sdk.Entry;
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ExpressionEvaluator;
+
+/**
+ * Ldap entry to gsuite user mapping rules. Expressions are compiled to bytecode once, so evaluation costs
+ * the same as hand written code.
+ */
+public class MappingRules {
+    /**
+     * Compiled mapping expression, it should be public in order to be implemented by generated class.
+     */
+    public interface Expression {
+        String eval(Entry entry, String domain, String orgUnit);
+    }
+
+    public enum EmployeeAction {
+        SYNC, HIDDEN, FAILED, SKIP
+    }
+
+    private static final String[] PARAMETERS = {"entry", "domain", "orgUnit"};
+
+    // attributes which are always used: login, mails and last modify time
+    private static final String[] BASE_ATTRIBUTES = {"uid", "mail", "mailAlternateAddress", "modifyTimestamp"};
+
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("getAttribute\\w*\\s*\\(\\s*\"([^\"]+)\"");
+
+    private final Expression givenName;
+    private final Expression familyName;
+    private final Expression password;
+    private final Expression phone;
+    private final Expression orgUnit;
+    private final Expression employeeType;
+    private final Map<String, EmployeeAction> employeeActions = new HashMap<>();
+
+    private final String[] attributes;
+
+    public MappingRules(MappingConfig config) throws CompileException {
+        Set<String> attrs = new LinkedHashSet<>(Arrays.asList(BASE_ATTRIBUTES));
+
+        givenName = compile("given_name", config.getGivenName(), attrs);
+        familyName = compile("family_name", config.getFamilyName(), attrs);
+        password = compile("password", config.getPassword(), attrs);
+        phone = compile("phone", config.getPhone(), attrs);
+        orgUnit = compile("org_unit", config.getOrgUnit(), attrs);
+        employeeType = compile("employee_type", config.getEmployeeType(), attrs);
+
+        config.getEmployeeTypes().forEach((type, action) -> {
+            try {
+                employeeActions.put(type == null ? "" : type, EmployeeAction.valueOf(action.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown action for employee type " + type + ": " + action);
+            }
+        });
+
+        attrs.addAll(config.getAttributes());
+        attributes = attrs.toArray(new String[0]);
+    }
+
+    private static Expression compile(String name, String expression, Set<String> attrs) throws CompileException {
+        if (expression == null || expression.isBlank()) {
+            return (entry, domain, orgUnit) -> null;
+        }
+
+        Matcher m = ATTRIBUTE_PATTERN.matcher(expression);
+        while (m.find()) {
+            attrs.add(m.group(1));
+        }
+
+        ExpressionEvaluator ee = new ExpressionEvaluator();
+        ee.setParentClassLoader(MappingRules.class.getClassLoader());
+
+        try {
+            return (Expression) ee.createFastEvaluator(expression, Expression.class, PARAMETERS);
+        } catch (CompileException e) {
+            throw new CompileException("Error compiling mapping rule " + name + ": " + e.getMessage(), e.getLocation());
+        }
+    }
+
+    /**
+     * @return ldap attributes needed for mapping
+     */
+    public String[] getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return action for employee type or null if type is unknown
+     */
+    public EmployeeAction getEmployeeAction(String type) {
+        return employeeActions.get(type);
+    }
+
+    public String getEmployeeType(Entry e) {
+        return employeeType.eval(e, null, null);
+    }
+
+    public String getGivenName(Entry e, String domain, String orgUnit) {
+        return givenName.eval(e, domain, orgUnit);
+    }
+
+    public String getFamilyName(Entry e, String domain, String orgUnit) {
+        return familyName.eval(e, domain, orgUnit);
+    }
+
+    public String getPassword(Entry e, String domain, String orgUnit) {
+        return password.eval(e, domain, orgUnit);
+    }
+
+    public String getPhone(Entry e, String domain, String orgUnit) {
+        return phone.eval(e, domain, orgUnit);
+    }
+
+    public String getOrgUnit(Entry e, String domain, String orgUnit) {
+        return this.orgUnit.eval(e, domain, orgUnit);
+    }
+}
@@ -0,0 +1,104 @@
+package com.kvaster.gsuite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logins failed by sync. Each login is retried with own jittered exponential backoff,
+ * so one broken user does not delay or repeat changes of other users.
+ */
+class RetryQueue {
+    private static final double RANDOMIZATION_FACTOR = 0.5;
+
+    private static class Entry {
+        int attempts;
+        long nextMillis;
+    }
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    RetryQueue(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Register failed attempt.
+     *
+     * @return logins without attempts left, they are removed from queue
+     */
+    List<String> failed(Collection<String> logins, long now) {
+        List<String> exhausted = new ArrayList<>();
+
+        for (String login : logins) {
+            Entry e = entries.computeIfAbsent(login, (l) -> new Entry());
+            e.attempts++;
+
+            if (e.attempts > maxAttempts) {
+                entries.remove(login);
+                exhausted.add(login);
+            } else {
+                e.nextMillis = now + delay(e.attempts);
+            }
+        }
+
+        return exhausted;
+    }
+
+    private long delay(int attempts) {
+        long delay = initialDelayMillis << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+
+        double jitter = RANDOMIZATION_FACTOR * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (delay * (1 + jitter));
+    }
+
+    void succeeded(Collection<String> logins) {
+        logins.forEach(entries::remove);
+    }
+
+    /**
+     * Full sync has checked all users, only given logins are still failing.
+     */
+    void retain(Collection<String> logins) {
+        Set<String> failed = new HashSet<>(logins);
+        entries.keySet().removeIf((l) -> !failed.contains(l));
+    }
+
+    /**
+     * @return logins which should be retried now
+     */
+    List<String> due(long now) {
+        List<String> logins = new ArrayList<>();
+        entries.forEach((l, e) -> {
+            if (e.nextMillis <= now) {
+                logins.add(l);
+            }
+        });
+        return logins;
+    }
+
+    /**
+     * @return time of next retry or -1 if queue is empty
+     */
+    long nextMillis() {
+        return entries.values().stream().mapToLong((e) -> e.nextMillis).min().orElse(-1);
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
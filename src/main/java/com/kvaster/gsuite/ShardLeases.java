@@ -0,0 +1,237 @@
+package com.kvaster.gsuite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads shards (gsuite domains) across nodes with time limited leases. Each node renews own member lease and
+ * leases of its shards, target share is shards divided by live members. Node over target releases extra shards,
+ * node under target takes free or expired ones, shard of stopped node is taken over when its lease expires.
+ * Shards are ranked by hash of node and shard, so nodes prefer different shards and don't race for the same ones.
+ * <p>
+ * Dropped shard is released only after service stops using it (see {@link #setActive}), until then lease is
+ * renewed. If leases can't be renewed, node stops using all shards one renew interval before they expire,
+ * so changes in progress can be finished before other nodes take them. Service should check {@link #owns}
+ * before each change, held shards are applied by service only between its tasks.
+ */
+public class ShardLeases {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardLeases.class);
+
+    private static final String MEMBER_PREFIX = "node.";
+    private static final String SHARD_PREFIX = "domain.";
+
+    private final LeaseStore store;
+    private final String node;
+    private final List<String> shards;
+    private final long ttlMillis;
+    private final long renewMillis;
+    // called from lease thread when held shards are changed
+    private final Runnable listener;
+    // runs one renew at a time, used only by leases and shut down on stop
+    private final ScheduledExecutorService executor;
+
+    // shards with lease taken by this node, lease thread only
+    private final Set<String> leased = new LinkedHashSet<>();
+    // time of last successful renew, leases are valid for ttl after it
+    private volatile long renewedMillis;
+    // copy of leased shards for other threads
+    private volatile Set<String> owned = Collections.emptySet();
+
+    private volatile Set<String> held = Collections.emptySet();
+    private volatile Set<String> active = Collections.emptySet();
+
+    /**
+     * @param node     - unique node name
+     * @param shards   - all shards
+     * @param executor - executor for lease renew used only by leases, it is shut down on stop
+     */
+    public ShardLeases(
+            LeaseStore store, String node, List<String> shards, long ttlMillis, long renewMillis, Runnable listener,
+            ScheduledExecutorService executor
+    ) {
+        if (renewMillis <= 0 || renewMillis >= ttlMillis) {
+            throw new IllegalArgumentException("Renew interval should be positive and less than lease ttl");
+        }
+
+        this.store = store;
+        this.node = node;
+        this.shards = shards;
+        this.ttlMillis = ttlMillis;
+        this.renewMillis = renewMillis;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    public void start() {
+        LOG.info("Node {} is joining cluster", node);
+        renewedMillis = System.currentTimeMillis();
+        executor.scheduleWithFixedDelay(this::renew, 0, renewMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop renewing and release all leases, so other nodes can take shards without waiting for expiration.
+     */
+    public void stop() {
+        executor.shutdownNow();
+
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.error("Timeout while waiting lease renew to stop");
+            }
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while stopping lease renew", e);
+        }
+
+        owned = Collections.emptySet();
+        for (String shard : leased) {
+            release(shard);
+        }
+        leased.clear();
+
+        try {
+            store.release(MEMBER_PREFIX + node, node);
+        } catch (Exception e) {
+            LOG.warn("Error releasing member lease of {}", node, e);
+        }
+    }
+
+    /**
+     * @return shards which should be synced by this node
+     */
+    public Set<String> getHeld() {
+        return held;
+    }
+
+    /**
+     * @return true if shard is leased by this node and lease won't expire within renew interval
+     */
+    public boolean owns(String shard) {
+        return owned.contains(shard) && isSafe(System.currentTimeMillis());
+    }
+
+    private boolean isSafe(long now) {
+        return now - renewedMillis < ttlMillis - renewMillis;
+    }
+
+    /**
+     * @param shards - shards used by service now, they are not released until service stops using them
+     */
+    public void setActive(Set<String> shards) {
+        active = shards;
+    }
+
+    private void renew() {
+        long now = System.currentTimeMillis();
+        long expires = now + ttlMillis;
+
+        try {
+            store.acquire(MEMBER_PREFIX + node, node, expires);
+
+            for (String shard : new ArrayList<>(leased)) {
+                if (!store.acquire(SHARD_PREFIX + shard, node, expires)) {
+                    LOG.warn("Lease of {} is lost", shard);
+                    leased.remove(shard);
+                }
+            }
+
+            int members = (int) Math.max(store.list(MEMBER_PREFIX).stream()
+                    .filter((l) -> l.isValid(now)).count(), 1);
+            int target = (shards.size() + members - 1) / members;
+
+            Map<String, LeaseStore.Lease> leases = new HashMap<>();
+            store.list(SHARD_PREFIX).forEach((l) -> leases.put(l.key.substring(SHARD_PREFIX.length()), l));
+
+            // best ranked shards first
+            List<String> ranked = new ArrayList<>(shards);
+            ranked.sort(Comparator.comparingInt((String s) -> rank(s)).reversed());
+
+            // keep own shards first, so shards don't move between nodes without need
+            Set<String> next = new LinkedHashSet<>();
+            for (String shard : ranked) {
+                if (next.size() < target && leased.contains(shard)) {
+                    next.add(shard);
+                }
+            }
+
+            for (String shard : ranked) {
+                if (next.size() >= target) {
+                    break;
+                }
+
+                if (leased.contains(shard)) {
+                    continue;
+                }
+
+                LeaseStore.Lease lease = leases.get(shard);
+                if ((lease == null || !lease.isValid(now)) && store.acquire(SHARD_PREFIX + shard, node, expires)) {
+                    LOG.info("Lease of {} is taken", shard);
+                    leased.add(shard);
+                    next.add(shard);
+                }
+            }
+
+            // extra shards are released when service doesn't use them anymore
+            Set<String> used = active;
+            for (String shard : new ArrayList<>(leased)) {
+                if (!next.contains(shard) && !used.contains(shard)) {
+                    release(shard);
+                    leased.remove(shard);
+                }
+            }
+
+            renewedMillis = now;
+            owned = Collections.unmodifiableSet(new LinkedHashSet<>(leased));
+            publish(next);
+        } catch (Exception e) {
+            LOG.warn("Error renewing leases", e);
+
+            if (!isSafe(now)) {
+                LOG.error("Leases were not renewed for {} ms, all shards are dropped", now - renewedMillis);
+                // leases expire within renew interval and may be taken by other nodes then
+                leased.clear();
+                owned = Collections.emptySet();
+                publish(Collections.emptySet());
+            }
+        }
+    }
+
+    private void publish(Set<String> next) {
+        if (!next.equals(held)) {
+            LOG.info("Node {} syncs domains: {}", node, next);
+
+            held = Collections.unmodifiableSet(next);
+            listener.run();
+        }
+    }
+
+    private void release(String shard) {
+        try {
+            store.release(SHARD_PREFIX + shard, node);
+            LOG.info("Lease of {} is released", shard);
+        } catch (Exception e) {
+            LOG.warn("Error releasing lease of {}", shard, e);
+        }
+    }
+
+    private int rank(String shard) {
+        // murmur3 finalizer
+        int h = (node + '/' + shard).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
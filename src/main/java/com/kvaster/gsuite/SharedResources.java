@@ -0,0 +1,184 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.http.HttpTransport;
+import com.kvaster.utils.concurrent.FairExecutor;
+import com.kvaster.utils.email.CommonsEmailFactory;
+import com.kvaster.utils.metrics.MetricsRegistry;
+import com.kvaster.utils.metrics.MetricsServer;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threads and connections shared by sync services of all tenants in one process.
+ * <p>
+ * Each tenant gets own lanes in shared executors. Scheduler lane runs one task at a time, so service tasks are
+ * still executed one after another. Mutation batches use separate executor: sync task waits for batches and
+ * would deadlock if both were executed by the same threads.
+ * <p>
+ * Background executor runs periodic housekeeping (notification channel renewal, access token refresh, lease
+ * renewal) which may wait for google retries, so it never holds up sync tasks of scheduler lanes.
+ * <p>
+ * Metrics of all tenants are served by one endpoint with tenant label, notification receivers of all tenants
+ * share one http thread.
+ * <p>
+ * Http transports with the same settings and ldap pools with the same url and bind dn are created once,
+ * pool size and health check settings of first tenant are used.
+ */
+class SharedResources {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedResources.class);
+
+    private final FairExecutor scheduler;
+    private final FairExecutor background;
+    private final FairExecutor mutations;
+    private final ThreadPoolExecutor mailExecutor;
+    private final ExecutorService httpExecutor = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "watch");
+        t.setDaemon(true);
+        return t;
+    });
+    // null - metrics endpoint is disabled
+    private final MetricsServer metricsServer;
+
+    private final Map<String, HttpTransport> httpTransports = new HashMap<>();
+    private final Map<String, LdapHelper> ldapHelpers = new HashMap<>();
+    private final Map<String, LDAPConnectionPool> ldapPools = new HashMap<>();
+
+    /**
+     * @param metricsConfig - shared metrics endpoint, may be null
+     * @param metricsLabel  - label with tenant name added to metrics, null - single tenant without label
+     */
+    SharedResources(
+            int schedulerThreads, int backgroundThreads, int mutationThreads, int mailThreads,
+            GSuiteSyncConfig.MetricsConfig metricsConfig, String metricsLabel
+    ) throws IOException {
+        scheduler = new FairExecutor("scheduler", schedulerThreads);
+        background = new FairExecutor("background", backgroundThreads);
+        mutations = new FairExecutor("mutations", mutationThreads);
+        mailExecutor = CommonsEmailFactory.createExecutor(mailThreads);
+
+        // port is bound on start, so plan can be written next to running instance
+        metricsServer = metricsConfig != null && metricsConfig.getPort() > 0
+                ? new MetricsServer(metricsConfig.getHost(), metricsConfig.getPort(), metricsLabel)
+                : null;
+    }
+
+    void start() throws IOException {
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+    }
+
+    FairExecutor.Lane newSchedulerLane(String tenant) {
+        return scheduler.newLane(tenant, 1);
+    }
+
+    /**
+     * @param name - tenant name with task kind, e.g. "mydomain-watch"
+     */
+    FairExecutor.Lane newBackgroundLane(String name) {
+        return background.newLane(name, 1);
+    }
+
+    /**
+     * @return executor of notification receivers, it should not be shut down by tenant
+     */
+    ExecutorService getHttpExecutor() {
+        return httpExecutor;
+    }
+
+    void addMetrics(String tenant, MetricsRegistry metrics) {
+        if (metricsServer != null) {
+            metricsServer.addRegistry(tenant, metrics);
+        }
+    }
+
+    void removeMetrics(String tenant) {
+        if (metricsServer != null) {
+            metricsServer.removeRegistry(tenant);
+        }
+    }
+
+    FairExecutor.Lane newMutationLane(String tenant, int threads) {
+        return mutations.newLane(tenant, threads);
+    }
+
+    ThreadPoolExecutor getMailExecutor() {
+        return mailExecutor;
+    }
+
+    synchronized HttpTransport getHttpTransport(GSuiteSyncConfig.GSuiteConfig gc) {
+        String key = String.join(":", List.of(gc.getHttpTransport(), String.valueOf(gc.getHttp2()),
+                String.valueOf(gc.getHttpConnectTimeoutMillis()), String.valueOf(gc.getHttpPoolSize()),
+                String.valueOf(gc.getHttpKeepAliveSeconds())));
+
+        return httpTransports.computeIfAbsent(key, (k) -> GoogleHelper.createHttpTransport(gc));
+    }
+
+    synchronized LdapHelper getLdapHelper(String url) throws GeneralSecurityException, LDAPException {
+        LdapHelper helper = ldapHelpers.get(url);
+        if (helper == null) {
+            helper = new LdapHelper(url);
+            ldapHelpers.put(url, helper);
+        }
+        return helper;
+    }
+
+    /**
+     * @return shared pool, it should not be closed by tenant
+     */
+    synchronized LDAPConnectionPool getLdapPool(GSuiteSyncConfig.LdapConfig lc) throws GeneralSecurityException,
+            LDAPException {
+        return getLdapPool(lc, lc.getBindDn(), lc.getBindPw());
+    }
+
+    /**
+     * @return shared pool of given bind dn with pool settings of ldap config, it should not be closed by tenant
+     */
+    synchronized LDAPConnectionPool getLdapPool(GSuiteSyncConfig.LdapConfig lc, String bindDn, String bindPw)
+            throws GeneralSecurityException, LDAPException {
+        String key = lc.getUrl() + " " + bindDn;
+
+        LDAPConnectionPool pool = ldapPools.get(key);
+        if (pool == null) {
+            pool = getLdapHelper(lc.getUrl()).createPool(bindDn, bindPw, Math.max(lc.getPoolSize(), 1),
+                    lc.getPoolHealthCheckIntervalMillis(), lc.getPoolMaxConnectionAgeMillis());
+            ldapPools.put(key, pool);
+        }
+        return pool;
+    }
+
+    synchronized void close() {
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+
+        scheduler.stop();
+        background.stop();
+        mutations.stop();
+        httpExecutor.shutdownNow();
+
+        ldapPools.values().forEach(LDAPConnectionPool::close);
+        ldapPools.clear();
+
+        mailExecutor.shutdown();
+        try {
+            if (!mailExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.error("Canceling {} emails", mailExecutor.shutdownNow().size());
+            }
+        } catch (InterruptedException ie) {
+            LOG.error("Interrupted on mail executor stop");
+        }
+    }
+}
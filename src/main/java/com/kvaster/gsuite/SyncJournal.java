@@ -0,0 +1,242 @@
+package com.kvaster.gsuite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable progress of sync run: planned user changes and completed mutations. Records are appended and
+ * synced to disk before and after each batch phase, so interrupted sync can be resumed without listing and diff.
+ * Incomplete record at the end of file (crash during write) is ignored.
+ */
+class SyncJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncJournal.class);
+
+    private static final int MAGIC = 0x47534a4e; // GSJN
+    private static final int VERSION = 1;
+
+    private static final byte PLAN_ADD = 1;
+    private static final byte PLAN_UPDATE = 2;
+    private static final byte PLAN_DONE = 3;
+    private static final byte INSERTED = 4;
+    private static final byte UPDATED = 5;
+    private static final byte ALIASES_DONE = 6;
+
+    /**
+     * Planned change of one user and its progress.
+     */
+    static class Action {
+        final LdapUser lu;
+        final boolean add;
+        final boolean aliasUpdate;
+        boolean mutated;
+        boolean aliasesDone;
+
+        Action(LdapUser lu, boolean add, boolean aliasUpdate) {
+            this.lu = lu;
+            this.add = add;
+            this.aliasUpdate = aliasUpdate;
+        }
+
+        boolean isDone() {
+            return mutated && (!aliasUpdate || aliasesDone);
+        }
+    }
+
+    static class Pending {
+        final Collection<Action> actions;
+        // diff was finished, otherwise only part of changes is known
+        final boolean planComplete;
+
+        Pending(Collection<Action> actions, boolean planComplete) {
+            this.actions = actions;
+            this.planComplete = planComplete;
+        }
+    }
+
+    private final File file;
+
+    private FileOutputStream fos;
+    private DataOutputStream out;
+
+    SyncJournal(File file) {
+        this.file = file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Start journal of new sync run, previous journal is discarded.
+     */
+    void begin() throws IOException {
+        open(false);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        sync();
+    }
+
+    /**
+     * Continue existing journal (resumed sync).
+     */
+    void append() throws IOException {
+        open(true);
+    }
+
+    private void open(boolean append) throws IOException {
+        close();
+        fos = new FileOutputStream(file, append);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+
+    void planAdd(LdapUser lu) throws IOException {
+        if (out != null) {
+            out.writeByte(PLAN_ADD);
+            UserDiff.LDAP_USER_CODEC.write(out, lu);
+        }
+    }
+
+    void planUpdate(LdapUser lu, boolean aliasUpdate) throws IOException {
+        if (out != null) {
+            out.writeByte(PLAN_UPDATE);
+            out.writeBoolean(aliasUpdate);
+            UserDiff.LDAP_USER_CODEC.write(out, lu);
+        }
+    }
+
+    void planDone() throws IOException {
+        if (out != null) {
+            out.writeByte(PLAN_DONE);
+        }
+    }
+
+    void inserted(String login) throws IOException {
+        record(INSERTED, login);
+    }
+
+    void updated(String login) throws IOException {
+        record(UPDATED, login);
+    }
+
+    void aliasesDone(String login) throws IOException {
+        record(ALIASES_DONE, login);
+    }
+
+    private void record(byte type, String login) throws IOException {
+        if (out != null) {
+            out.writeByte(type);
+            out.writeUTF(login);
+        }
+    }
+
+    /**
+     * Flush appended records to disk.
+     */
+    void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing sync journal", e);
+            }
+
+            out = null;
+            fos = null;
+        }
+    }
+
+    void delete() {
+        close();
+
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Can't delete sync journal: {}", file);
+        }
+    }
+
+    /**
+     * @return not finished changes of interrupted sync run
+     */
+    Pending load() throws IOException {
+        Map<String, Action> actions = new LinkedHashMap<>();
+        boolean planComplete = false;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Unknown sync journal format: " + file);
+            }
+
+            while (true) {
+                int type = is.read();
+                if (type < 0) {
+                    break;
+                }
+
+                switch (type) {
+                    case PLAN_ADD: {
+                        LdapUser lu = UserDiff.LDAP_USER_CODEC.read(is);
+                        actions.put(lu.login, new Action(lu, true, lu.aliases.size() > 0));
+                        break;
+                    }
+
+                    case PLAN_UPDATE: {
+                        boolean aliasUpdate = is.readBoolean();
+                        LdapUser lu = UserDiff.LDAP_USER_CODEC.read(is);
+                        actions.put(lu.login, new Action(lu, false, aliasUpdate));
+                        break;
+                    }
+
+                    case PLAN_DONE:
+                        planComplete = true;
+                        break;
+
+                    case INSERTED:
+                    case UPDATED: {
+                        Action a = actions.get(is.readUTF());
+                        if (a != null) {
+                            a.mutated = true;
+                        }
+                        break;
+                    }
+
+                    case ALIASES_DONE: {
+                        Action a = actions.get(is.readUTF());
+                        if (a != null) {
+                            a.aliasesDone = true;
+                        }
+                        break;
+                    }
+
+                    default:
+                        throw new IOException("Corrupted sync journal: " + file);
+                }
+            }
+        } catch (EOFException e) {
+            LOG.warn("Sync journal ends with incomplete record, it is ignored");
+        }
+
+        actions.values().removeIf(Action::isDone);
+
+        return new Pending(new ArrayList<>(actions.values()), planComplete);
+    }
+}
@@ -0,0 +1,146 @@
+package com.kvaster.gsuite;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.api.services.admin.directory.model.User;
+import com.kvaster.utils.io.AtomicFile;
+
+/**
+ * Dry run: collects diff actions without executing them and estimates api usage and time of real sync.
+ * Alias changes are calculated from aliases in gsuite listing as in real sync, which lists aliases only
+ * when listing data turns out to be stale.
+ */
+class SyncPlan implements UserDiff.Actions {
+    private final UserMapper mapper;
+    private final int batchSize;
+    private final int threads;
+    // receives mapping warnings, the same as in real sync
+    private final Msgs msgs;
+
+    private final List<String> inserts = new ArrayList<>();
+    private final List<String> updates = new ArrayList<>();
+    private final List<Map<String, String>> aliasAdds = new ArrayList<>();
+    private final List<Map<String, String>> aliasDeletes = new ArrayList<>();
+    private final List<String> deleteManually = new ArrayList<>();
+    private final List<String> uncontrolled = new ArrayList<>();
+    private final List<String> noPassword = new ArrayList<>();
+
+    SyncPlan(UserMapper mapper, int batchSize, int threads, Msgs msgs) {
+        this.mapper = mapper;
+        this.msgs = msgs;
+        this.batchSize = Math.max(1, Math.min(batchSize, DirectoryBatch.MAX_BATCH_SIZE));
+        this.threads = Math.max(1, threads);
+    }
+
+    @Override
+    public void add(LdapUser lu) {
+        // the same check as in real sync: user without usable password is not inserted
+        if (mapper.createUser(lu, msgs).getPassword() == null) {
+            noPassword.add(lu.login);
+            return;
+        }
+
+        inserts.add(lu.login);
+
+        if (lu.aliases.size() > 0) {
+            lu.aliases.stream().sorted().forEach((a) -> aliasAdds.add(alias(lu.login, a)));
+        }
+    }
+
+    @Override
+    public void update(LdapUser lu, User gu) {
+        updates.add(lu.login);
+
+        if (mapper.needAliasUpdate(lu, gu)) {
+            Set<String> current = gu.getAliases() == null ? Set.of() : new HashSet<>(gu.getAliases());
+            lu.aliases.stream().filter((a) -> !current.contains(a)).sorted()
+                    .forEach((a) -> aliasAdds.add(alias(lu.login, a)));
+            current.stream().filter((a) -> !lu.aliases.contains(a)).sorted()
+                    .forEach((a) -> aliasDeletes.add(alias(lu.login, a)));
+        }
+    }
+
+    @Override
+    public void deleteManually(String login) {
+        deleteManually.add(login);
+    }
+
+    @Override
+    public void uncontrolled(String login) {
+        uncontrolled.add(login);
+    }
+
+    private static Map<String, String> alias(String login, String alias) {
+        Map<String, String> m = new LinkedHashMap<>();
+        m.put("login", login);
+        m.put("alias", alias);
+        return m;
+    }
+
+    /**
+     * @param listSeconds         - measured time of ldap search and gsuite listing
+     * @param batchLatencySeconds - measured latency of one full batch request
+     */
+    void write(
+            File file, int ldapUsers, int gsuiteUsers, double listSeconds, double batchLatencySeconds, Msgs msgs
+    ) throws IOException {
+        // phases are executed one after another, batches of one phase are executed in parallel
+        int[] phases = {inserts.size(), updates.size(), aliasAdds.size() + aliasDeletes.size()};
+
+        int httpRequests = 0;
+        int batchRounds = 0;
+        for (int calls : phases) {
+            int batches = (calls + batchSize - 1) / batchSize;
+            httpRequests += batches;
+            batchRounds += (batches + threads - 1) / threads;
+        }
+
+        Map<String, Integer> apiCalls = new LinkedHashMap<>();
+        apiCalls.put("users.insert", inserts.size());
+        apiCalls.put("users.update", updates.size());
+        apiCalls.put("users.aliases.insert", aliasAdds.size());
+        apiCalls.put("users.aliases.delete", aliasDeletes.size());
+        apiCalls.put("total", Arrays.stream(phases).sum());
+
+        double mutationSeconds = batchRounds * batchLatencySeconds;
+
+        Map<String, Object> estimate = new LinkedHashMap<>();
+        estimate.put("api_calls", apiCalls);
+        estimate.put("http_requests", httpRequests);
+        estimate.put("batch_size", batchSize);
+        estimate.put("threads", threads);
+        estimate.put("batch_latency_seconds", batchLatencySeconds);
+        estimate.put("list_seconds", listSeconds);
+        estimate.put("mutation_seconds", mutationSeconds);
+        estimate.put("total_seconds", listSeconds + mutationSeconds);
+
+        Map<String, Object> plan = new LinkedHashMap<>();
+        plan.put("generated", Instant.now().toString());
+        plan.put("ldap_users", ldapUsers);
+        plan.put("gsuite_users", gsuiteUsers);
+        plan.put("inserts", inserts);
+        plan.put("updates", updates);
+        plan.put("alias_adds", aliasAdds);
+        plan.put("alias_deletes", aliasDeletes);
+        plan.put("delete_manually", deleteManually);
+        plan.put("uncontrolled", uncontrolled);
+        plan.put("no_password", noPassword);
+        plan.put("messages", msgs.getMessages().lines().collect(Collectors.toList()));
+        plan.put("estimate", estimate);
+
+        ObjectMapper json = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        AtomicFile.write(file, json.writeValueAsBytes(plan));
+    }
+}
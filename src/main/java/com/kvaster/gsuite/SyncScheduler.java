@@ -0,0 +1,158 @@
+package com.kvaster.gsuite;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces change events into syncs without locking.
+ * <p>
+ * Isolated change fires sync immediately. When changes keep coming (bursts) sync waits until no new change
+ * arrives within quiet window, and this window is doubled on each change inside it (up to max quiet).
+ * Sync is never delayed more than max wait after first pending change.
+ * <p>
+ * Changes arrived during sync are absorbed by next sync, only one sync is running at a time.
+ */
+public class SyncScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncScheduler.class);
+
+    public interface SyncTask {
+        /**
+         * @param events - number of change events absorbed by this sync
+         * @return true if sync succeeded
+         */
+        boolean sync(int events);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final SyncTask task;
+
+    private final long quietMillis;
+    private final long maxQuietMillis;
+    private final long maxWaitMillis;
+    private final long retryDelayMillis;
+
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+    private final AtomicLong firstEventTime = new AtomicLong();
+    private final AtomicLong lastEventTime = new AtomicLong();
+    private final AtomicLong currentQuietMillis = new AtomicLong();
+    private final AtomicBoolean immediate = new AtomicBoolean();
+    private final AtomicBoolean tickScheduled = new AtomicBoolean();
+
+    // no sync before this time (startup delay and retry delay)
+    private volatile long notBefore;
+    private volatile int lastSyncEvents;
+
+    public SyncScheduler(
+            ScheduledExecutorService executor, SyncTask task, long quietMillis, long maxQuietMillis,
+            long maxWaitMillis, long startupDelayMillis, long retryDelayMillis
+    ) {
+        this.executor = executor;
+        this.task = task;
+        this.quietMillis = quietMillis;
+        this.maxQuietMillis = Math.max(quietMillis, maxQuietMillis);
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryDelayMillis = retryDelayMillis;
+
+        currentQuietMillis.set(quietMillis);
+        notBefore = System.currentTimeMillis() + startupDelayMillis;
+    }
+
+    /**
+     * Register change event. May be called from any thread.
+     */
+    public void onChange() {
+        long now = System.currentTimeMillis();
+
+        long prev = lastEventTime.getAndSet(now);
+        long quiet = currentQuietMillis.get();
+
+        boolean isolated = now - prev > quiet;
+        if (isolated) {
+            currentQuietMillis.set(quietMillis);
+        } else {
+            currentQuietMillis.set(Math.min(quiet * 2, maxQuietMillis));
+        }
+
+        firstEventTime.compareAndSet(0, now);
+
+        if (pendingEvents.getAndIncrement() == 0 && isolated) {
+            immediate.set(true);
+        }
+
+        trySchedule(now);
+    }
+
+    public int getPendingEvents() {
+        return pendingEvents.get();
+    }
+
+    /**
+     * @return number of change events absorbed by last sync
+     */
+    public int getLastSyncEvents() {
+        return lastSyncEvents;
+    }
+
+    private long deadline() {
+        long deadline;
+
+        if (immediate.get()) {
+            deadline = 0;
+        } else {
+            deadline = lastEventTime.get() + currentQuietMillis.get();
+
+            long first = firstEventTime.get();
+            if (first != 0) {
+                deadline = Math.min(deadline, first + maxWaitMillis);
+            }
+        }
+
+        return Math.max(deadline, notBefore);
+    }
+
+    private void trySchedule(long now) {
+        if (tickScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::tick, Math.max(0, deadline() - now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long deadline = deadline();
+
+        if (deadline > now) {
+            // new events arrived after tick was scheduled
+            executor.schedule(this::tick, deadline - now, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        immediate.set(false);
+        firstEventTime.set(0);
+        int events = pendingEvents.getAndSet(0);
+
+        if (events > 0) {
+            lastSyncEvents = events;
+
+            LOG.debug("Sync started, absorbed change events: {}", events);
+
+            if (!task.sync(events)) {
+                notBefore = System.currentTimeMillis() + retryDelayMillis;
+                // retry is just one more change
+                firstEventTime.compareAndSet(0, now);
+                pendingEvents.incrementAndGet();
+            }
+        }
+
+        tickScheduled.set(false);
+
+        if (pendingEvents.get() > 0) {
+            trySchedule(System.currentTimeMillis());
+        }
+    }
+}
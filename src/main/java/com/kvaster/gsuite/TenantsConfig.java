@@ -0,0 +1,59 @@
+package com.kvaster.gsuite;
+
+import java.util.List;
+
+/**
+ * Several sync configurations executed in one process with shared threads and connections.
+ */
+class TenantsConfig {
+    // tasks of all tenants, 0 - one thread per tenant
+    private int schedulerThreads = 0;
+    // periodic background tasks of all tenants (notification channel renewal, token refresh, lease renewal)
+    private int backgroundThreads = 2;
+    // gsuite batch requests of all tenants, each tenant uses at most own gsuite threads
+    private int mutationThreads = 8;
+    private int mailThreads = 1;
+    // one endpoint for all tenants, samples have tenant label
+    private GSuiteSyncConfig.MetricsConfig metrics = new GSuiteSyncConfig.MetricsConfig();
+    private List<GSuiteSyncConfig> tenants;
+
+    protected TenantsConfig() {
+        // for deserialization
+    }
+
+    public TenantsConfig(
+            int schedulerThreads, int backgroundThreads, int mutationThreads, int mailThreads,
+            GSuiteSyncConfig.MetricsConfig metrics, List<GSuiteSyncConfig> tenants
+    ) {
+        this.schedulerThreads = schedulerThreads;
+        this.backgroundThreads = backgroundThreads;
+        this.mutationThreads = mutationThreads;
+        this.mailThreads = mailThreads;
+        this.metrics = metrics;
+        this.tenants = tenants;
+    }
+
+    public int getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    public int getBackgroundThreads() {
+        return backgroundThreads;
+    }
+
+    public int getMutationThreads() {
+        return mutationThreads;
+    }
+
+    public int getMailThreads() {
+        return mailThreads;
+    }
+
+    public GSuiteSyncConfig.MetricsConfig getMetricsConfig() {
+        return metrics;
+    }
+
+    public List<GSuiteSyncConfig> getTenants() {
+        return tenants;
+    }
+}
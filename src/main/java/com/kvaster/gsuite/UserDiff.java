@@ -0,0 +1,205 @@
+package com.kvaster.gsuite;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.admin.directory.model.User;
+import com.kvaster.utils.io.ExternalSorter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merge join of ldap and gsuite users sorted by login. Actions are emitted as soon as both sides are compared,
+ * so memory does not depend on number of users when inputs are streamed.
+ */
+class UserDiff {
+    private static final Logger LOG = LoggerFactory.getLogger(UserDiff.class);
+
+    static final Comparator<LdapUser> LDAP_ORDER = Comparator.comparing((u) -> u.login);
+    static final Comparator<User> GSUITE_ORDER = Comparator.comparing(User::getPrimaryEmail);
+
+    interface Actions {
+        void add(LdapUser lu) throws IOException;
+
+        void update(LdapUser lu, User gu) throws IOException;
+
+        /**
+         * Failed user still exists in gsuite.
+         */
+        void deleteManually(String login);
+
+        /**
+         * Gsuite user in controlled domain without ldap user.
+         */
+        void uncontrolled(String login);
+    }
+
+    private final UserMapper mapper;
+    private final boolean reportUncontrolled;
+
+    UserDiff(UserMapper mapper, boolean reportUncontrolled) {
+        this.mapper = mapper;
+        this.reportUncontrolled = reportUncontrolled;
+    }
+
+    /**
+     * @param ldapUsers   - ldap users sorted with {@link #LDAP_ORDER}
+     * @param gsuiteUsers - gsuite users sorted with {@link #GSUITE_ORDER}
+     */
+    void diff(Iterator<LdapUser> ldapUsers, Iterator<User> gsuiteUsers, Actions actions, Msgs msgs)
+            throws IOException {
+        diff(ldapUsers, gsuiteUsers, false, actions, msgs);
+    }
+
+    /**
+     * @param ldapUsers     - ldap users sorted with {@link #LDAP_ORDER}
+     * @param gsuiteUsers   - gsuite users sorted with {@link #GSUITE_ORDER}
+     * @param compareFields - compare users field by field even in fingerprint mode
+     */
+    void diff(
+            Iterator<LdapUser> ldapUsers, Iterator<User> gsuiteUsers, boolean compareFields, Actions actions, Msgs msgs
+    ) throws IOException {
+        LdapUser lu = next(ldapUsers, null, msgs);
+        User gu = gsuiteUsers.hasNext() ? gsuiteUsers.next() : null;
+
+        while (lu != null || gu != null) {
+            int cmp = lu == null ? 1 : gu == null ? -1 : lu.login.compareTo(gu.getPrimaryEmail());
+
+            if (cmp < 0) {
+                diff(lu, null, compareFields, actions);
+                lu = next(ldapUsers, lu, msgs);
+            } else if (cmp > 0) {
+                if (reportUncontrolled) {
+                    actions.uncontrolled(gu.getPrimaryEmail());
+                }
+                gu = gsuiteUsers.hasNext() ? gsuiteUsers.next() : null;
+            } else {
+                diff(lu, gu, compareFields, actions);
+                lu = next(ldapUsers, lu, msgs);
+                gu = gsuiteUsers.hasNext() ? gsuiteUsers.next() : null;
+            }
+        }
+    }
+
+    private void diff(LdapUser lu, User gu, boolean compareFields, Actions actions) throws IOException {
+        if (!lu.needSync) {
+            return;
+        }
+
+        if (gu == null) {
+            if (!lu.failed) {
+                actions.add(lu);
+            }
+        } else if (mapper.needSync(lu, gu, compareFields)) {
+            actions.update(lu, gu);
+
+            if (lu.failed) {
+                actions.deleteManually(lu.login);
+            }
+        }
+    }
+
+    private static LdapUser next(Iterator<LdapUser> users, LdapUser prev, Msgs msgs) {
+        while (users.hasNext()) {
+            LdapUser u = users.next();
+
+            if (prev == null || !prev.login.equals(u.login)) {
+                return u;
+            }
+
+            LOG.warn("Duplicate ldap user, skipping: {}", u.login);
+            msgs.warn("duplicate ldap user, skipping: %s", u.login);
+        }
+
+        return null;
+    }
+
+    /**
+     * Ldap user serialization for external sort.
+     */
+    static final ExternalSorter.Codec<LdapUser> LDAP_USER_CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutputStream out, LdapUser u) throws IOException {
+            writeString(out, u.givenName);
+            writeString(out, u.surName);
+            writeString(out, u.login);
+            out.writeInt(u.aliases.size());
+            for (String a : u.aliases) {
+                out.writeUTF(a);
+            }
+            writeString(out, u.password);
+            writeString(out, u.phone);
+            writeString(out, u.orgUnit);
+            out.writeBoolean(u.searchable);
+            out.writeBoolean(u.failed);
+            writeString(out, u.lastModify);
+            writeString(out, u.fingerprint);
+            out.writeBoolean(u.needSync);
+        }
+
+        @Override
+        public LdapUser read(DataInputStream in) throws IOException {
+            String givenName = readString(in);
+            String surName = readString(in);
+            String login = readString(in);
+            int count = in.readInt();
+            Set<String> aliases = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                aliases.add(in.readUTF());
+            }
+            String password = readString(in);
+            String phone = readString(in);
+            String orgUnit = readString(in);
+            boolean searchable = in.readBoolean();
+            boolean failed = in.readBoolean();
+            String lastModify = readString(in);
+            String fingerprint = readString(in);
+            boolean needSync = in.readBoolean();
+
+            return new LdapUser(
+                    givenName, surName, login, aliases, password,
+                    phone, orgUnit, searchable, failed,
+                    lastModify, fingerprint, needSync
+            );
+        }
+    };
+
+    /**
+     * Gsuite user serialization for external sort, users are stored as json, so they keep api output shape.
+     */
+    static ExternalSorter.Codec<User> gsuiteUserCodec(JsonFactory jsonFactory) {
+        return new ExternalSorter.Codec<>() {
+            @Override
+            public void write(DataOutputStream out, User u) throws IOException {
+                byte[] data = jsonFactory.toByteArray(u);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            @Override
+            public User read(DataInputStream in) throws IOException {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                return jsonFactory.fromString(new String(data, StandardCharsets.UTF_8), User.class);
+            }
+        };
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,466 @@
+package com.kvaster.gsuite;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.Strings;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.UserExternalId;
+import com.google.api.services.admin.directory.model.UserName;
+import com.google.api.services.admin.directory.model.UserPhone;
+import com.google.common.io.BaseEncoding;
+import com.kvaster.gsuite.GSuiteSyncConfig.Domain;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps ldap entries to gsuite users and compares them. It is called for every user on each sync.
+ */
+class UserMapper {
+    private static final Logger LOG = LoggerFactory.getLogger(UserMapper.class);
+
+    // we need to add some version to 'last update' field in order to be able
+    // to do full resync in case of significant code changess
+    static final String SYNC_VERSION = "1";
+
+    private static final String SHA_PREFIX = "{SHA}";
+
+    private static final String LAST_MODIFY_TYPE = "lastModify";
+    private static final String FINGERPRINT_TYPE = "syncHash";
+    private static final String FINGERPRINT_MAC = "HmacSHA256";
+
+    private final DomainRouter router;
+    private final MappingRules rules;
+    private final boolean useFingerprint;
+    // null - fingerprint is not computed and not stored in gsuite
+    private final SecretKeySpec fingerprintKey;
+    // domains synced by this node in cluster mode, null - all domains
+    private volatile Set<String> ownedDomains;
+    // checks right before change that domain is still leased by this node, null - no cluster
+    private volatile Predicate<String> leaseCheck;
+
+    private final PasswordGenerator passwordGenerator = new PasswordGenerator();
+
+    /**
+     * @param domains        - controlled domains
+     * @param rules          - compiled mapping rules
+     * @param useFingerprint - compare users only by fingerprint of mapped fields
+     * @param fingerprintKey - secret key of fingerprint hmac, required if fingerprint is used
+     */
+    UserMapper(List<Domain> domains, MappingRules rules, boolean useFingerprint, String fingerprintKey) {
+        if (useFingerprint && Strings.isNullOrEmpty(fingerprintKey)) {
+            throw new IllegalArgumentException("Fingerprint key is required for fingerprint compare");
+        }
+
+        this.router = new DomainRouter(domains);
+        this.rules = rules;
+        this.useFingerprint = useFingerprint;
+        this.fingerprintKey = Strings.isNullOrEmpty(fingerprintKey)
+                ? null
+                : new SecretKeySpec(fingerprintKey.getBytes(StandardCharsets.UTF_8), FINGERPRINT_MAC);
+    }
+
+    String getLastModify(User gu) {
+        return getCustomExternalId(gu, LAST_MODIFY_TYPE);
+    }
+
+    String getFingerprint(User gu) {
+        return getCustomExternalId(gu, FINGERPRINT_TYPE);
+    }
+
+    private static String getCustomExternalId(User gu, String customType) {
+        // Latest google client library does not parse this object as UserExternalID
+        @SuppressWarnings("unchecked")
+        List<Map<String, String>> externalIds = (List<Map<String, String>>) gu.getExternalIds();
+        if (externalIds != null) {
+            for (Map<String, String> e : externalIds) {
+                if ("custom".equals(e.get("type")) && customType.equals(e.get("customType"))) {
+                    return e.get("value");
+                }
+            }
+        }
+
+        return null;
+    }
+
+    boolean needAliasUpdate(LdapUser lu, User gu) {
+        if (gu.getAliases() == null) {
+            return lu.aliases.size() != 0;
+        }
+
+        return !lu.aliases.equals(new HashSet<>(gu.getAliases()));
+    }
+
+    boolean needSync(LdapUser lu, User gu) {
+        return needSync(lu, gu, false);
+    }
+
+    /**
+     * @param compareFields - compare mapped fields in fingerprint mode too, e.g. user was changed in gsuite
+     */
+    boolean needSync(LdapUser lu, User gu, boolean compareFields) {
+        if (useFingerprint) {
+            // fingerprint covers all mapped fields, unrelated ldap changes do not cause update
+            if (!lu.fingerprint.equals(getFingerprint(gu))) {
+                return true;
+            }
+
+            return compareFields && needFieldsSync(lu, gu);
+        }
+
+        if (!Objects.equals(lu.lastModify, getLastModify(gu))) {
+            return true;
+        }
+
+        return needFieldsSync(lu, gu);
+    }
+
+    private boolean needFieldsSync(LdapUser lu, User gu) {
+        UserName name = gu.getName();
+        if (!Objects.equals(lu.givenName, name.getGivenName())
+                || !Objects.equals(lu.surName, name.getFamilyName())
+                || !Objects.equals(lu.givenName + ' ' + lu.surName, name.getFullName())) {
+            return true;
+        }
+
+        if (needAliasUpdate(lu, gu)) {
+            return true;
+        }
+
+        if (!Objects.equals(lu.orgUnit, gu.getOrgUnitPath())) {
+            return true;
+        }
+
+        if (lu.searchable != gu.getIncludeInGlobalAddressList()) {
+            return true;
+        }
+
+        // Latest google client does not parse this value as UserPhone :(
+        @SuppressWarnings("unchecked")
+        List<Map<String, String>> phones = (List<Map<String, String>>) gu.getPhones();
+        if (lu.phone == null) {
+            if (phones != null && phones.size() != 0) {
+                return true;
+            }
+        } else {
+            String phone = null;
+            if (phones != null && phones.size() == 1) {
+                Map<String, String> p = phones.get(0);
+                if ("mobile".equals(p.get("type"))) {
+                    phone = phones.get(0).get("value");
+                }
+            }
+
+            if (!lu.phone.equals(phone)) {
+                return true;
+            }
+        }
+
+        if (lu.failed) {
+            if (!Strings.isNullOrEmpty((String) gu.get("recoveryEmail"))
+                    || !Strings.isNullOrEmpty((String) gu.get("recoveryPhone"))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static byte[] sha1(String str) {
+        return digest("SHA1").digest(str.getBytes());
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    User createUser(LdapUser lu, Msgs msgs) {
+        User user = new User();
+        user.setPrimaryEmail(lu.login);
+        user.setChangePasswordAtNextLogin(false);
+        user.setOrgUnitPath(lu.orgUnit);
+        user.setIncludeInGlobalAddressList(lu.searchable);
+
+        String pass = lu.password;
+
+        if (lu.failed) {
+            // generate random (unknown) password for failed employees
+            pass = "{SHA}" + Base64.encodeBase64String(sha1(passwordGenerator.genPass()));
+            // and reset recovery email and phone
+            user.set("recoveryEmail", "");
+            user.set("recoveryPhone", "");
+        }
+
+        if (pass != null) {
+            if (pass.startsWith(SHA_PREFIX)) {
+                user.setHashFunction("SHA-1");
+                user.setPassword(BaseEncoding.base16()
+                        .encode(Base64.decodeBase64(pass.substring(SHA_PREFIX.length()))));
+            } else {
+                LOG.warn("User password is not SHA: {}", lu.login);
+                msgs.warn("user password is not SHA: %s", lu.login);
+            }
+        }
+
+        user.setAliases(new ArrayList<>(lu.aliases));
+
+        UserName name = new UserName();
+        name.setGivenName(lu.givenName);
+        name.setFamilyName(lu.surName);
+        user.setName(name);
+
+        List<UserExternalId> eids = new ArrayList<>();
+        eids.add(new UserExternalId().setType("custom").setCustomType(LAST_MODIFY_TYPE).setValue(lu.lastModify));
+        if (lu.fingerprint != null) {
+            eids.add(new UserExternalId().setType("custom").setCustomType(FINGERPRINT_TYPE).setValue(lu.fingerprint));
+        }
+        user.setExternalIds(eids);
+
+        if (lu.phone != null) {
+            UserPhone phone = new UserPhone();
+            phone.setValue(lu.phone);
+            phone.setType("mobile");
+            List<UserPhone> phones = new ArrayList<>();
+            phones.add(phone);
+            user.setPhones(phones);
+        }
+
+        return user;
+    }
+
+    private static <T> T orDefault(T value, T defValue) {
+        return value == null ? defValue : value;
+    }
+
+    /**
+     * @return ldap attributes needed for mapping
+     */
+    String[] getLdapAttributes() {
+        return rules.getAttributes();
+    }
+
+    /**
+     * Users in other domains are ignored, but their mails in controlled domains are still mapped as aliases.
+     *
+     * @param domains - domains synced by this node, null - all domains
+     */
+    void setOwnedDomains(Set<String> domains) {
+        ownedDomains = domains;
+    }
+
+    private boolean isOwned(Domain d) {
+        Set<String> owned = ownedDomains;
+        return owned == null || owned.contains(d.getDomain());
+    }
+
+    boolean isControlled(String mail) {
+        Domain d = router.route(mail);
+        return d != null && isOwned(d);
+    }
+
+    /**
+     * @param leaseCheck - true if domain lease is still held by this node
+     */
+    void setLeaseCheck(Predicate<String> leaseCheck) {
+        this.leaseCheck = leaseCheck;
+    }
+
+    /**
+     * Owned domains are changed only between syncs, lease may be lost during sync.
+     *
+     * @return true if user may be changed in gsuite now
+     */
+    boolean isLeased(String login) {
+        Predicate<String> check = leaseCheck;
+        if (check == null) {
+            return true;
+        }
+
+        Domain d = router.route(login);
+        return d != null && check.test(d.getDomain());
+    }
+
+    /**
+     * Login is uid in its domain, uid may also contain domain.
+     *
+     * @param mail - mail in controlled domain
+     */
+    private static boolean isLogin(String mail, String uid) {
+        int at = uid.length();
+        return mail.length() > at
+                && mail.charAt(at) == '@'
+                && mail.regionMatches(0, uid, 0, at)
+                && mail.lastIndexOf('@') == at;
+    }
+
+    LdapUser getLdapUser(Entry e, Msgs msgs) {
+        try {
+            return mapLdapUser(e, msgs);
+        } catch (RuntimeException ex) {
+            LOG.error("Error mapping ldap entry: {}", e.getDN(), ex);
+            msgs.error("error mapping ldap entry %s: %s", e.getDN(), ex.toString());
+            return null;
+        }
+    }
+
+    private LdapUser mapLdapUser(Entry e, Msgs msgs) {
+        String employeeType = orDefault(rules.getEmployeeType(e), "");
+
+        MappingRules.EmployeeAction action = rules.getEmployeeAction(employeeType);
+        if (action == null) {
+            // unknown user type
+            LOG.warn("Unknown employee type: {}, for dn: {}", employeeType, e.getDN());
+            return null;
+        }
+
+        if (action == MappingRules.EmployeeAction.SKIP) {
+            // e.g. service user used for sending through our own smtp - skipping
+            return null;
+        }
+
+        // failed user is processed carefully :)
+        boolean failed = action == MappingRules.EmployeeAction.FAILED;
+
+        String uid = e.getAttributeValue("uid");
+
+        String login = null;
+        Domain domain = null;
+        Set<String> mails = new HashSet<>();
+
+        Attribute attr = e.getAttribute("mail");
+        if (attr != null) {
+            for (String mail : attr.getValues()) {
+                // mail can be only in one domain
+                Domain d = router.route(mail);
+                if (d != null) {
+                    mails.add(mail);
+
+                    if (login == null && uid != null && (uid.indexOf('@') >= 0 ? mail.equals(uid) : isLogin(mail, uid))) {
+                        login = mail;
+                        domain = d;
+                    }
+                }
+            }
+        }
+
+        attr = e.getAttribute("mailAlternateAddress");
+        if (attr != null) {
+            for (String mail : attr.getValues()) {
+                if (router.route(mail) != null) {
+                    mails.add(mail);
+                }
+            }
+        }
+
+        if (login == null) {
+            if (!failed && mails.size() > 0) {
+                LOG.warn("User should be controlled by domains, but it is not: {}", e.getDN());
+                msgs.warn("user should be controlled, but it is not: %s", e.getDN());
+            }
+
+            return null;
+        }
+
+        if (!isOwned(domain)) {
+            // synced by other node
+            return null;
+        }
+
+        mails.remove(login);
+
+        String domainName = domain.getDomain();
+        String domainOrgUnit = domain.getOrgUnit();
+
+        String surname = rules.getFamilyName(e, domainName, domainOrgUnit);
+        String name = rules.getGivenName(e, domainName, domainOrgUnit);
+        String password = rules.getPassword(e, domainName, domainOrgUnit);
+        String phone = rules.getPhone(e, domainName, domainOrgUnit);
+        String orgUnit = rules.getOrgUnit(e, domainName, domainOrgUnit);
+        String lastModify = e.getAttributeValue("modifyTimestamp") + '-' + SYNC_VERSION;
+
+        boolean searchable = action != MappingRules.EmployeeAction.HIDDEN;
+
+        String fingerprint = fingerprintKey == null
+                ? null
+                : fingerprint(name, surname, login, mails, password, phone, orgUnit, searchable, failed);
+
+        return new LdapUser(
+                name, surname, login, mails, password,
+                phone, orgUnit, searchable, failed,
+                lastModify, fingerprint, true
+        );
+    }
+
+    /**
+     * Canonical keyed hash of all fields mapped to gsuite user. Every value is length prefixed, so different
+     * field combinations can't produce the same byte stream, and aliases are sorted. Hash is stored in gsuite
+     * and includes password hash, so it is hmac - without the key it can't be used to check password guesses.
+     */
+    private String fingerprint(
+            String givenName, String surName, String login, Set<String> aliases, String password,
+            String phone, String orgUnit, boolean searchable, boolean failed
+    ) {
+        Mac md = mac(fingerprintKey);
+
+        update(md, givenName);
+        update(md, surName);
+        update(md, login);
+
+        List<String> sorted = new ArrayList<>(aliases);
+        Collections.sort(sorted);
+        md.update(intToBytes(sorted.size()));
+        sorted.forEach((a) -> update(md, a));
+
+        update(md, password);
+        update(md, phone);
+        update(md, orgUnit);
+        md.update((byte) (searchable ? 1 : 0));
+        md.update((byte) (failed ? 1 : 0));
+
+        return SYNC_VERSION + '-' + Base64.encodeBase64URLSafeString(md.doFinal());
+    }
+
+    private static Mac mac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(key.getAlgorithm());
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(Mac md, String value) {
+        if (value == null) {
+            md.update(intToBytes(-1));
+        } else {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            md.update(intToBytes(data.length));
+            md.update(data);
+        }
+    }
+
+    private static byte[] intToBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
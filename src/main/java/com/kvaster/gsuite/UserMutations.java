@@ -0,0 +1,452 @@
+package com.kvaster.gsuite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Alias;
+import com.google.api.services.admin.directory.model.Aliases;
+import com.google.api.services.admin.directory.model.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes diff actions in chunks. Each chunk goes through insert, update and alias phases one after another,
+ * so user is always inserted before its aliases are touched.
+ * <p>
+ * Alias changes are calculated from aliases returned by users listing. Aliases are listed only when they are
+ * unknown (resumed sync) or when insert or delete conflicts with listing data (it is stale).
+ */
+class UserMutations implements UserDiff.Actions {
+    private static final Logger LOG = LoggerFactory.getLogger(UserMutations.class);
+
+    private static class Update {
+        final LdapUser lu;
+        final boolean aliasUpdate;
+        // aliases from gsuite listing, null - unknown
+        final List<String> aliases;
+
+        Update(LdapUser lu, boolean aliasUpdate, List<String> aliases) {
+            this.lu = lu;
+            this.aliasUpdate = aliasUpdate;
+            this.aliases = aliases;
+        }
+    }
+
+    private static class AliasUpdate {
+        final LdapUser lu;
+        // aliases in gsuite, null - unknown and should be listed
+        Set<String> current;
+        // current aliases are just listed
+        boolean listed;
+
+        AliasUpdate(LdapUser lu, Collection<String> current) {
+            this.lu = lu;
+            this.current = current == null ? null : new HashSet<>(current);
+        }
+    }
+
+    private static class AliasOp {
+        final AliasUpdate update;
+        final String alias;
+        final boolean add;
+        final DirectoryBatch.Op<?> op;
+
+        AliasOp(AliasUpdate update, String alias, boolean add, DirectoryBatch.Op<?> op) {
+            this.update = update;
+            this.alias = alias;
+            this.add = add;
+            this.op = op;
+        }
+
+        /**
+         * Alias already exists or is already deleted - listing data was stale.
+         */
+        boolean isConflict() {
+            return !op.isOk() && op.getError().getCode() == (add ? 409 : 404);
+        }
+    }
+
+    private final Directory directory;
+    private final UserMapper mapper;
+    private final DirectoryBatch batch;
+    private final int chunkSize;
+    private final Msgs msgs;
+    // receives gsuite users changed by this sync, may be null
+    private final Consumer<User> changeListener;
+    // progress journal, may be null
+    private final SyncJournal journal;
+
+    private final List<LdapUser> forAdd = new ArrayList<>();
+    private final List<Update> forUpd = new ArrayList<>();
+    // users with finished insert or update, but not finished aliases (resumed sync)
+    private final List<LdapUser> forAlias = new ArrayList<>();
+    // logins with failed google operations
+    private final Set<String> failed = new LinkedHashSet<>();
+
+    private int added;
+    private int updated;
+    private int deleteWarnings;
+    private int uncontrolled;
+    private int errors;
+
+    /**
+     * @param chunkSize      - max users changed at once, Integer.MAX_VALUE - all changes are executed by finish()
+     * @param changeListener - receives changed gsuite users, may be null
+     * @param journal        - records planned and finished changes, may be null
+     */
+    UserMutations(
+            Directory directory, UserMapper mapper, DirectoryBatch batch, int chunkSize, Msgs msgs,
+            Consumer<User> changeListener, SyncJournal journal
+    ) {
+        this.directory = directory;
+        this.mapper = mapper;
+        this.batch = batch;
+        this.chunkSize = chunkSize;
+        this.msgs = msgs;
+        this.changeListener = changeListener;
+        this.journal = journal;
+    }
+
+    @Override
+    public void add(LdapUser lu) throws IOException {
+        if (journal != null) {
+            journal.planAdd(lu);
+        }
+
+        added++;
+        forAdd.add(lu);
+        flushIfFull();
+    }
+
+    @Override
+    public void update(LdapUser lu, User gu) throws IOException {
+        boolean aliasUpdate = mapper.needAliasUpdate(lu, gu);
+
+        if (journal != null) {
+            journal.planUpdate(lu, aliasUpdate);
+        }
+
+        updated++;
+        // listing omits empty aliases
+        forUpd.add(new Update(lu, aliasUpdate, gu.getAliases() == null ? Collections.emptyList() : gu.getAliases()));
+        flushIfFull();
+    }
+
+    /**
+     * Continue not finished change of interrupted sync, it is already recorded in journal.
+     */
+    void resume(SyncJournal.Action action) throws IOException {
+        if (action.mutated) {
+            forAlias.add(action.lu);
+        } else if (action.add) {
+            added++;
+            forAdd.add(action.lu);
+        } else {
+            updated++;
+            forUpd.add(new Update(action.lu, action.aliasUpdate, null));
+        }
+
+        flushIfFull();
+    }
+
+    @Override
+    public void deleteManually(String login) {
+        deleteWarnings++;
+        LOG.info("User should be deleted manually: {}", login);
+        msgs.warn("user should be deleted manually: %s", login);
+    }
+
+    @Override
+    public void uncontrolled(String login) {
+        uncontrolled++;
+        LOG.info("User is not under control: {}", login);
+        msgs.warn("user is not under control: %s", login);
+    }
+
+    /**
+     * Executes remaining changes.
+     *
+     * @return number of failed google operations
+     */
+    int finish() throws IOException {
+        LOG.info("for del: {}, add: {}, update: {}, ctrl: {}", deleteWarnings, added, updated, uncontrolled);
+
+        if (journal != null) {
+            journal.planDone();
+        }
+
+        flush();
+        return errors;
+    }
+
+    /**
+     * @return logins with failed google operations, other changes are done
+     */
+    Set<String> getFailed() {
+        return failed;
+    }
+
+    private void flushIfFull() throws IOException {
+        if (forAdd.size() + forUpd.size() + forAlias.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    private void syncJournal() throws IOException {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    private boolean isLeased(String login) {
+        if (mapper.isLeased(login)) {
+            return true;
+        }
+
+        LOG.warn("Domain lease is lost, user is not changed: {}", login);
+        msgs.warn("domain lease is lost, user is not changed: %s", login);
+        return false;
+    }
+
+    private void flush() throws IOException {
+        // planned changes should be durable before they are executed
+        syncJournal();
+
+        // other node may take domain when lease is lost, it will sync the users
+        forAdd.removeIf((lu) -> !isLeased(lu.login));
+        forUpd.removeIf((u) -> !isLeased(u.lu.login));
+        forAlias.removeIf((lu) -> !isLeased(lu.login));
+
+        List<AliasUpdate> forAliasUpdate = new ArrayList<>();
+        forAlias.forEach((lu) -> forAliasUpdate.add(new AliasUpdate(lu, null)));
+        forAlias.clear();
+        Map<String, User> changed = new HashMap<>();
+
+        for (LdapUser lu : forAdd) {
+            LOG.info("Adding user: {}", lu.login);
+
+            User user = mapper.createUser(lu, msgs);
+            if (user.getPassword() == null) {
+                LOG.info("Can't add user without password: {}", lu.login);
+                msgs.warn("can't add user without password: %s", lu.login);
+                continue;
+            }
+
+            batch.queue(lu.login, directory.users().insert(user));
+        }
+
+        Map<String, LdapUser> added = new HashMap<>();
+        forAdd.forEach((lu) -> added.put(lu.login, lu));
+        forAdd.clear();
+
+        for (DirectoryBatch.Op<?> op : batch.execute()) {
+            String login = op.getLogin();
+
+            if (!op.isOk()) {
+                reportError(op, "adding user");
+                continue;
+            }
+
+            LdapUser lu = added.get(login);
+            if (lu.aliases.size() > 0) {
+                // new user has no aliases
+                forAliasUpdate.add(new AliasUpdate(lu, Collections.emptySet()));
+            }
+
+            changed.put(login, (User) op.getResult());
+
+            if (journal != null) {
+                journal.inserted(login);
+            }
+
+            msgs.info("user added: %s", login);
+        }
+
+        syncJournal();
+
+        Map<String, Update> updates = new HashMap<>();
+        for (Update u : forUpd) {
+            LOG.info("Updating user: {}", u.lu.login);
+
+            updates.put(u.lu.login, u);
+            batch.queue(u.lu.login, directory.users().update(u.lu.login, mapper.createUser(u.lu, msgs)));
+        }
+        forUpd.clear();
+
+        for (DirectoryBatch.Op<?> op : batch.execute()) {
+            String login = op.getLogin();
+
+            if (!op.isOk()) {
+                reportError(op, "updating user");
+                continue;
+            }
+
+            Update u = updates.get(login);
+            if (u.aliasUpdate) {
+                forAliasUpdate.add(new AliasUpdate(u.lu, u.aliases));
+            }
+
+            changed.put(login, (User) op.getResult());
+
+            if (journal != null) {
+                journal.updated(login);
+            }
+
+            msgs.info("user updated: %s", login);
+        }
+
+        syncJournal();
+
+        // users with all alias changes done
+        Set<String> aliasesDone = new HashSet<>();
+        forAliasUpdate.forEach((au) -> aliasesDone.add(au.lu.login));
+
+        listAliases(forAliasUpdate.stream().filter((au) -> au.current == null).collect(Collectors.toList()),
+                aliasesDone);
+
+        Set<AliasUpdate> stale = new LinkedHashSet<>();
+        for (AliasOp ao : changeAliases(forAliasUpdate)) {
+            if (ao.isConflict() && !ao.update.listed) {
+                if (stale.add(ao.update)) {
+                    LOG.info("Aliases of {} differ from listing, listing them again", ao.update.lu.login);
+                }
+            } else {
+                aliasDone(ao, aliasesDone);
+            }
+        }
+
+        if (!stale.isEmpty()) {
+            List<AliasUpdate> relist = new ArrayList<>(stale);
+            listAliases(relist, aliasesDone);
+
+            for (AliasOp ao : changeAliases(relist)) {
+                aliasDone(ao, aliasesDone);
+            }
+        }
+
+        if (journal != null) {
+            for (String login : aliasesDone) {
+                journal.aliasesDone(login);
+            }
+            journal.sync();
+        }
+
+        if (changeListener != null) {
+            // listener is used only when all operations succeeded, so aliases are the same as in ldap
+            forAliasUpdate.forEach((au) -> {
+                User u = changed.get(au.lu.login);
+                if (u != null) {
+                    u.setAliases(new ArrayList<>(au.lu.aliases));
+                }
+            });
+            changed.values().forEach(changeListener);
+        }
+    }
+
+    /**
+     * List current aliases of given users, users with failed listing are excluded from alias changes.
+     */
+    private void listAliases(List<AliasUpdate> updates, Set<String> aliasesDone) throws IOException {
+        List<DirectoryBatch.Op<Aliases>> ops = new ArrayList<>();
+        for (AliasUpdate au : updates) {
+            ops.add(batch.queue(au.lu.login, directory.users().aliases().list(au.lu.login)));
+        }
+        batch.execute();
+
+        for (int i = 0; i < updates.size(); i++) {
+            AliasUpdate au = updates.get(i);
+            DirectoryBatch.Op<Aliases> op = ops.get(i);
+
+            au.current = null;
+
+            if (!op.isOk()) {
+                reportError(op, "listing aliases");
+                aliasesDone.remove(au.lu.login);
+                continue;
+            }
+
+            au.listed = true;
+            au.current = new HashSet<>();
+
+            Aliases aliases = op.getResult();
+            if (aliases.getAliases() != null) {
+                aliases.getAliases().forEach((o) -> {
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> a = (Map<String, String>) o;
+                    if ("admin#directory#alias".equals(a.get("kind"))) {
+                        au.current.add(a.get("alias"));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Insert and delete aliases of users with known current aliases.
+     *
+     * @return executed operations
+     */
+    private List<AliasOp> changeAliases(List<AliasUpdate> updates) throws IOException {
+        List<AliasOp> aliasOps = new ArrayList<>();
+
+        for (AliasUpdate au : updates) {
+            if (au.current == null) {
+                continue;
+            }
+
+            LdapUser lu = au.lu;
+
+            for (String a : lu.aliases) {
+                if (!au.current.contains(a)) {
+                    LOG.info("Adding alias {} for {}", a, lu.login);
+                    aliasOps.add(new AliasOp(au, a, true,
+                            batch.queue(lu.login, directory.users().aliases().insert(lu.login, new Alias().setAlias(a)))));
+                }
+            }
+
+            for (String a : au.current) {
+                if (!lu.aliases.contains(a)) {
+                    LOG.info("Deleting alias {} for {}", a, lu.login);
+                    aliasOps.add(new AliasOp(au, a, false,
+                            batch.queue(lu.login, directory.users().aliases().delete(lu.login, a))));
+                }
+            }
+        }
+        batch.execute();
+
+        return aliasOps;
+    }
+
+    private void aliasDone(AliasOp ao, Set<String> aliasesDone) {
+        String login = ao.update.lu.login;
+
+        if (!ao.op.isOk()) {
+            reportError(ao.op, ao.add ? "adding alias " + ao.alias : "deleting alias " + ao.alias);
+            aliasesDone.remove(login);
+        } else if (ao.add) {
+            msgs.info("alias added: %s for %s", ao.alias, login);
+        } else {
+            msgs.info("alias deleted: %s for %s", ao.alias, login);
+        }
+    }
+
+    private void reportError(DirectoryBatch.Op<?> op, String action) {
+        errors++;
+        failed.add(op.getLogin());
+
+        String error = op.getError().getMessage();
+        LOG.error("Error {} for {}: {}", action, op.getLogin(), error);
+        msgs.error("error %s for %s: %s", action, op.getLogin(), error);
+    }
+}
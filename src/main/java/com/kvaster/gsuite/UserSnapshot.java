@@ -0,0 +1,72 @@
+package com.kvaster.gsuite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.Users;
+import com.kvaster.utils.io.AtomicFile;
+
+/**
+ * On-disk snapshot of gsuite users state. Only fields compared by sync are stored.
+ */
+public class UserSnapshot {
+    private final File file;
+    private final JsonFactory jsonFactory;
+    // null - store all fields
+    private final Set<String> fields;
+
+    public UserSnapshot(File file, JsonFactory jsonFactory, Collection<String> fields) {
+        this.file = file;
+        this.jsonFactory = jsonFactory;
+        this.fields = fields == null || fields.isEmpty() ? null : new HashSet<>(fields);
+    }
+
+    public List<User> load() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (InputStream is = new FileInputStream(file)) {
+            Users users = jsonFactory.fromInputStream(is, StandardCharsets.UTF_8, Users.class);
+            return users.getUsers() == null ? Collections.emptyList() : users.getUsers();
+        }
+    }
+
+    public void save(Collection<User> users) throws IOException {
+        List<User> compact = new ArrayList<>(users.size());
+        users.forEach((u) -> compact.add(compact(u)));
+
+        AtomicFile.write(file, (os) -> {
+            JsonGenerator g = jsonFactory.createJsonGenerator(os, StandardCharsets.UTF_8);
+            g.serialize(new Users().setUsers(compact));
+            g.flush();
+        });
+    }
+
+    private User compact(User user) {
+        if (fields == null) {
+            return user;
+        }
+
+        User u = new User();
+        user.forEach((k, v) -> {
+            if (fields.contains(k)) {
+                u.set(k, v);
+            }
+        });
+
+        return u;
+    }
+}
@@ -0,0 +1,344 @@
+package com.kvaster.utils.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed thread pool shared by several tenants. Each tenant submits tasks to own lane, lane runs at most
+ * configured number of tasks at once. Lanes with pending tasks are served round-robin, lane goes to the end of
+ * ready queue after each task, so tenant with many tasks can't starve other tenants.
+ * <p>
+ * Lane is also a scheduled executor: delayed tasks are handed over to lane by shared timer thread.
+ */
+public class FairExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(FairExecutor.class);
+
+    // one entry for each lane slot which may run task now
+    private final LinkedBlockingQueue<Lane> ready = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor timer;
+
+    private volatile boolean stopped;
+
+    public FairExecutor(String name, int threads) {
+        timer = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = new Thread(r, name + "-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        for (int i = 0; i < Math.max(threads, 1); i++) {
+            Thread t = new Thread(this::work, name + "-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * @param name        - lane name for logging
+     * @param concurrency - max tasks of this lane running at once, 1 - tasks are executed one after another
+     */
+    public Lane newLane(String name, int concurrency) {
+        return new Lane(name, Math.max(concurrency, 1));
+    }
+
+    public void stop() {
+        stopped = true;
+        timer.shutdownNow();
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work() {
+        while (!stopped) {
+            Lane lane;
+            try {
+                lane = ready.take();
+            } catch (InterruptedException e) {
+                // late interrupt from lane shutdown, worker exits only when executor is stopped
+                continue;
+            }
+
+            Runnable task = lane.next();
+            if (task == null) {
+                continue;
+            }
+
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            // lane name in thread name tells which tenant is logging
+            thread.setName(threadName + "-" + lane.name);
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                LOG.error("Task of {} failed", lane.name, e);
+            } finally {
+                thread.setName(threadName);
+                // lane can't interrupt thread after done, so interrupt from lane shutdown is cleared for sure
+                lane.done();
+                Thread.interrupted();
+            }
+        }
+    }
+
+    public class Lane extends AbstractExecutorService implements ScheduledExecutorService {
+        private final String name;
+        private final int concurrency;
+
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private final Set<Thread> running = new HashSet<>();
+        private final Set<ScheduledFuture<?>> delayed = Collections.synchronizedSet(new HashSet<>());
+        // slots in ready queue or running
+        private int active;
+        private boolean shutdown;
+
+        private Lane(String name, int concurrency) {
+            this.name = name;
+            this.concurrency = concurrency;
+        }
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            if (shutdown || stopped) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+
+            tasks.add(command);
+
+            if (active < concurrency) {
+                active++;
+                ready.add(this);
+            }
+        }
+
+        private synchronized Runnable next() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                active--;
+                notifyAll();
+            } else {
+                running.add(Thread.currentThread());
+            }
+            return task;
+        }
+
+        private synchronized void done() {
+            running.remove(Thread.currentThread());
+
+            if (tasks.isEmpty()) {
+                active--;
+                notifyAll();
+            } else {
+                // other lanes go first
+                ready.add(this);
+            }
+        }
+
+        /**
+         * @return tasks waiting for execution, delayed tasks included
+         */
+        public synchronized int getQueueSize() {
+            return tasks.size() + delayed.size();
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown = true;
+
+            // delayed task removes itself on cancel
+            new ArrayList<>(delayed).forEach((f) -> f.cancel(false));
+            delayed.clear();
+
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            // don't wait for busy workers to drain slots of this lane
+            while (ready.remove(this)) {
+                active--;
+            }
+            notifyAll();
+            running.forEach(Thread::interrupt);
+            return pending;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && active == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+            while (!isTerminated()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+
+            return true;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(new DelayedTask<Void>(command, null), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return schedule(new DelayedTask<>(callable), delay, unit);
+        }
+
+        private <V> ScheduledFuture<V> schedule(DelayedTask<V> task, long delay, TimeUnit unit) {
+            if (isShutdown() || stopped) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+
+            // registered before timer may fire
+            delayed.add(task);
+            task.timerFuture = timer.schedule(() -> {
+                delayed.remove(task);
+                try {
+                    execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.cancel(false);
+                }
+            }, delay, unit);
+
+            return task;
+        }
+
+        /**
+         * Next run is scheduled when previous one is finished, so runs never overlap or pile up in lane queue.
+         * Late runs go without delay until schedule is caught up, the same way as in
+         * {@link ScheduledThreadPoolExecutor}.
+         */
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            if (period <= 0) {
+                throw new IllegalArgumentException("Period should be positive: " + period);
+            }
+
+            return schedule(new DelayedTask<Void>(command, System.nanoTime() + unit.toNanos(initialDelay),
+                    unit.toNanos(period)), initialDelay, unit);
+        }
+
+        /**
+         * Delay is counted from end of previous run.
+         */
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            if (delay <= 0) {
+                throw new IllegalArgumentException("Delay should be positive: " + delay);
+            }
+
+            return schedule(new DelayedTask<Void>(command, System.nanoTime() + unit.toNanos(initialDelay),
+                    -unit.toNanos(delay)), initialDelay, unit);
+        }
+
+        private class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+            // nanos: 0 - one shot, > 0 - fixed rate, < 0 - fixed delay
+            private final long period;
+            // nano time of next run of periodic task
+            private long time;
+
+            private volatile ScheduledFuture<?> timerFuture;
+
+            DelayedTask(Callable<V> callable) {
+                super(callable);
+                this.period = 0;
+            }
+
+            DelayedTask(Runnable runnable, V result) {
+                super(runnable, result);
+                this.period = 0;
+            }
+
+            DelayedTask(Runnable runnable, long time, long period) {
+                super(runnable, null);
+                this.time = time;
+                this.period = period;
+            }
+
+            @Override
+            public void run() {
+                if (period == 0) {
+                    super.run();
+                    return;
+                }
+
+                // false - failed or canceled, periodic task is not rescheduled then
+                if (!runAndReset()) {
+                    return;
+                }
+
+                time = period > 0 ? time + period : System.nanoTime() - period;
+
+                try {
+                    schedule(this, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // lane is shut down
+                    cancel(false);
+                    return;
+                }
+
+                if (isCancelled()) {
+                    // canceled while rescheduling, new timer is dropped
+                    cancel(false);
+                }
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                ScheduledFuture<?> f = timerFuture;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                delayed.remove(this);
+                return super.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                ScheduledFuture<?> f = timerFuture;
+                return f == null ? 0 : f.getDelay(unit);
+            }
+
+            @Override
+            public int compareTo(Delayed o) {
+                return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+}
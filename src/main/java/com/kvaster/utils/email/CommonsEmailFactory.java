@@ -2,8 +2,10 @@ package com.kvaster.utils.email;
 
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeUtility;
@@ -29,10 +31,30 @@ public class CommonsEmailFactory implements EmailFactory {
     private final long retryDelayMillis;
 
     private final ThreadPoolExecutor executor;
+    // executor is shared with other factories and is not stopped by this one
+    private final boolean sharedExecutor;
+    private final AtomicInteger pending = new AtomicInteger();
 
     public CommonsEmailFactory(
             String host, String login, String password, String address, int threads, int sendRetries,
             long retryDelayMillis
+    ) {
+        this(host, login, password, address, createExecutor(threads), false, sendRetries, retryDelayMillis);
+    }
+
+    /**
+     * Factory which sends emails with executor shared by several factories.
+     */
+    public CommonsEmailFactory(
+            String host, String login, String password, String address, ThreadPoolExecutor executor,
+            int sendRetries, long retryDelayMillis
+    ) {
+        this(host, login, password, address, executor, true, sendRetries, retryDelayMillis);
+    }
+
+    private CommonsEmailFactory(
+            String host, String login, String password, String address, ThreadPoolExecutor executor,
+            boolean sharedExecutor, int sendRetries, long retryDelayMillis
     ) {
         checkArgument((login == null) == (password == null), login + " - " + password);
 
@@ -45,13 +67,26 @@ public class CommonsEmailFactory implements EmailFactory {
         this.sendRetries = sendRetries;
         this.retryDelayMillis = retryDelayMillis;
 
-        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
-        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+        this.sharedExecutor = sharedExecutor;
 
         LOG.info("{} created ({},{},{})", getClass().getSimpleName(), host, login, address);
     }
 
+    public static ThreadPoolExecutor createExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public void stop() {
+        if (sharedExecutor) {
+            // queued emails are sent until shared executor is stopped
+            LOG.info("Stopped ({} pending emails)", pending.get());
+            return;
+        }
+
         LOG.info("Stopping ({} pending tasks)", executor.getQueue().size());
 
         executor.shutdown();
@@ -71,6 +106,13 @@ public class CommonsEmailFactory implements EmailFactory {
         LOG.info("Stopped");
     }
 
+    /**
+     * @return number of emails queued or being sent
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
     @Override
     public Email createEmail() {
         try {
@@ -169,34 +211,49 @@ public class CommonsEmailFactory implements EmailFactory {
 
             LOG.debug("Queued email to {}", toAddress);
 
-            executor.execute(() -> {
-                for (int i = 0; i < sendRetries; i++) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(() -> {
                     try {
-                        if (i == 0) {
-                            LOG.debug("Sending email to {}", toAddress);
-                        } else {
-                            LOG.debug("Sending email to {}, retry no {}", toAddress, i);
-                        }
-                        email.send();
-                        LOG.debug("Email sent to {}", toAddress);
-                        return;
-                    } catch (Exception e) {
-                        if (!LOG.isDebugEnabled()) {
-                            LOG.error("Error sending email to {}: {}", toAddress, e.getMessage());
-                        } else {
-                            LOG.error("Error sending email to {}", toAddress, e);
-                        }
+                        doSend(toAddress);
+                    } finally {
+                        pending.decrementAndGet();
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                // executor is stopped, email is never sent
+                pending.decrementAndGet();
+                throw e;
+            }
+        }
 
-                    try {
-                        Thread.sleep(retryDelayMillis);
-                    } catch (InterruptedException e) {
-                        // do nothing
+        private void doSend(String toAddress) {
+            for (int i = 0; i < sendRetries; i++) {
+                try {
+                    if (i == 0) {
+                        LOG.debug("Sending email to {}", toAddress);
+                    } else {
+                        LOG.debug("Sending email to {}, retry no {}", toAddress, i);
+                    }
+                    email.send();
+                    LOG.debug("Email sent to {}", toAddress);
+                    return;
+                } catch (Exception e) {
+                    if (!LOG.isDebugEnabled()) {
+                        LOG.error("Error sending email to {}: {}", toAddress, e.getMessage());
+                    } else {
+                        LOG.error("Error sending email to {}", toAddress, e);
                     }
                 }
 
-                LOG.error("Fatal error sending email to {}, skipping", toAddress);
-            });
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            }
+
+            LOG.error("Fatal error sending email to {}, skipping", toAddress);
         }
     }
 }
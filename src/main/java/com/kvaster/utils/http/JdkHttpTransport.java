@@ -0,0 +1,198 @@
+package com.kvaster.utils.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+/**
+ * Google http client transport backed by jdk http client: http/2 multiplexing (negotiated with alpn),
+ * keep-alive connection pool shared by all requests. Gzip is negotiated and decoded by google client itself,
+ * transport passes content as is.
+ * <p>
+ * Jdk http client pool is configured with system properties, so pool settings are global and are applied
+ * only if they are not set already.
+ */
+public class JdkHttpTransport extends HttpTransport {
+    // headers which are set by jdk client and can't be set by request
+    private static final Set<String> RESTRICTED_HEADERS = Set.of(
+            "connection", "content-length", "date", "expect", "from", "host", "upgrade", "via", "warning");
+
+    private final HttpClient client;
+
+    /**
+     * @param http2                - prefer http/2, otherwise http/1.1 is used
+     * @param connectTimeoutMillis - 0 - no timeout
+     * @param poolSize             - max idle connections in pool, 0 - unlimited
+     * @param keepAliveSeconds     - idle connection lifetime in pool
+     */
+    public JdkHttpTransport(boolean http2, long connectTimeoutMillis, int poolSize, long keepAliveSeconds) {
+        setDefault("jdk.httpclient.connectionPoolSize", Integer.toString(poolSize));
+        setDefault("jdk.httpclient.keepalive.timeout", Long.toString(keepAliveSeconds));
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER);
+
+        if (connectTimeoutMillis > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeoutMillis));
+        }
+
+        client = builder.build();
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Request(method, url);
+    }
+
+    private class Request extends LowLevelHttpRequest {
+        private final HttpRequest.Builder builder;
+        private final String method;
+
+        Request(String method, String url) {
+            this.method = method;
+            this.builder = HttpRequest.newBuilder(URI.create(url));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                builder.header(name, value);
+            }
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            // connect timeout is set for client, jdk timeout covers waiting for response headers
+            if (readTimeout > 0) {
+                builder.timeout(Duration.ofMillis(readTimeout));
+            }
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+
+            if (getStreamingContent() != null) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                getStreamingContent().writeTo(os);
+                body = HttpRequest.BodyPublishers.ofByteArray(os.toByteArray());
+
+                if (getContentType() != null) {
+                    builder.setHeader("Content-Type", getContentType());
+                }
+                if (getContentEncoding() != null) {
+                    builder.setHeader("Content-Encoding", getContentEncoding());
+                }
+            }
+
+            try {
+                return new Response(client.send(builder.method(method, body).build(),
+                        HttpResponse.BodyHandlers.ofInputStream()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response");
+            }
+        }
+    }
+
+    private static class Response extends LowLevelHttpResponse {
+        private final HttpResponse<InputStream> response;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        Response(HttpResponse<InputStream> response) {
+            this.response = response;
+
+            response.headers().map().forEach((name, list) -> {
+                // http/2 pseudo headers
+                if (!name.startsWith(":")) {
+                    for (String value : list) {
+                        names.add(name);
+                        values.add(value);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public InputStream getContent() {
+            return response.body();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.headers().firstValue("Content-Encoding").orElse(null);
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        @Override
+        public String getContentType() {
+            return response.headers().firstValue("Content-Type").orElse(null);
+        }
+
+        @Override
+        public String getStatusLine() {
+            return null;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return null;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return names.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return names.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            // connection is returned to pool when body is read or closed
+            response.body().close();
+        }
+    }
+}
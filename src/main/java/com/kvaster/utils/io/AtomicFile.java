@@ -0,0 +1,52 @@
+package com.kvaster.utils.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Durable file replacement: content is written to temporary file, synced to disk
+ * and then renamed over target file, so readers see either old or new content.
+ */
+public class AtomicFile {
+    public interface Content {
+        void write(OutputStream os) throws IOException;
+    }
+
+    public static void write(File file, Content content) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(ch));
+            content.write(os);
+            os.flush();
+            ch.force(true);
+        }
+
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        syncDir(target.getParent());
+    }
+
+    public static void write(File file, byte[] data) throws IOException {
+        write(file, (os) -> os.write(data));
+    }
+
+    private static void syncDir(Path dir) {
+        // rename is durable only after directory is synced, not all platforms support this
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.kvaster.utils.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts any number of values with bounded memory: values are collected in memory, and when buffer is full
+ * it is sorted and spilled to temporary file (run). Sorted result is k-way merge of all runs.
+ * <p>
+ * Runs are readable by owner only and named with process id, runs left by crashed process are removed
+ * with {@link #deleteStaleRuns}.
+ * <p>
+ * Iterator may throw {@link UncheckedIOException} on read errors.
+ */
+public class ExternalSorter<T> implements Closeable {
+    private static final String RUN_PREFIX = "sort-";
+    private static final String RUN_SUFFIX = ".run";
+
+    public interface Codec<T> {
+        void write(DataOutputStream out, T value) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final Comparator<? super T> comparator;
+    private final Codec<T> codec;
+    private final int maxInMemory;
+    private final File tmpDir;
+
+    private final List<T> buffer = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private final List<Closeable> readers = new ArrayList<>();
+
+    /**
+     * @param comparator  - sort order
+     * @param codec       - value serialization for spilled runs
+     * @param maxInMemory - max values kept in memory
+     * @param tmpDir      - directory for runs, null - default temporary directory
+     */
+    public ExternalSorter(Comparator<? super T> comparator, Codec<T> codec, int maxInMemory, File tmpDir) {
+        this.comparator = comparator;
+        this.codec = codec;
+        this.maxInMemory = Math.max(maxInMemory, 1);
+        this.tmpDir = tmpDir;
+    }
+
+    public void add(T value) throws IOException {
+        buffer.add(value);
+
+        if (buffer.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Delete runs of processes which are not running anymore, runs of live processes (including this one)
+     * are kept, so directory may be shared.
+     *
+     * @param tmpDir - directory for runs, null - default temporary directory
+     * @return number of deleted runs
+     */
+    public static int deleteStaleRuns(File tmpDir) {
+        File dir = tmpDir != null ? tmpDir : new File(System.getProperty("java.io.tmpdir"));
+        File[] files = dir.listFiles((d, name) -> name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX));
+        if (files == null) {
+            return 0;
+        }
+
+        int deleted = 0;
+        for (File f : files) {
+            String name = f.getName();
+            int dash = name.indexOf('-', RUN_PREFIX.length());
+            if (dash < 0) {
+                continue;
+            }
+
+            try {
+                long pid = Long.parseLong(name.substring(RUN_PREFIX.length(), dash));
+                if (pid != ProcessHandle.current().pid() && !ProcessHandle.of(pid).isPresent() && f.delete()) {
+                    deleted++;
+                }
+            } catch (NumberFormatException e) {
+                // not our file
+            }
+        }
+
+        return deleted;
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+
+        // runs contain user data, temporary files are created with owner only permissions
+        String prefix = RUN_PREFIX + ProcessHandle.current().pid() + '-';
+        Path path = tmpDir == null
+                ? Files.createTempFile(prefix, RUN_SUFFIX)
+                : Files.createTempFile(tmpDir.toPath(), prefix, RUN_SUFFIX);
+        File run = path.toFile();
+        runs.add(run);
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (T value : buffer) {
+                os.writeBoolean(true);
+                codec.write(os, value);
+            }
+            os.writeBoolean(false);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Sorted values. Should be called once after all values are added.
+     */
+    public Iterator<T> sorted() throws IOException {
+        buffer.sort(comparator);
+
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+
+        List<Iterator<T>> sources = new ArrayList<>();
+        sources.add(buffer.iterator());
+        for (File run : runs) {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            readers.add(is);
+            sources.add(new RunIterator(is));
+        }
+
+        return new MergeIterator(sources);
+    }
+
+    /**
+     * Closes readers and deletes all runs.
+     */
+    @Override
+    public void close() {
+        for (Closeable r : readers) {
+            try {
+                r.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        runs.forEach(File::delete);
+        runs.clear();
+        buffer.clear();
+    }
+
+    private class RunIterator implements Iterator<T> {
+        private final DataInputStream is;
+        private T next;
+        private boolean done;
+
+        RunIterator(DataInputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    if (is.readBoolean()) {
+                        next = codec.read(is);
+                    } else {
+                        done = true;
+                    }
+                } catch (EOFException e) {
+                    throw new UncheckedIOException("Truncated sort run", e);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            T value = next;
+            next = null;
+            return value;
+        }
+    }
+
+    private class MergeIterator implements Iterator<T> {
+        private class Head {
+            final T value;
+            final Iterator<T> source;
+
+            Head(T value, Iterator<T> source) {
+                this.value = value;
+                this.source = source;
+            }
+        }
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> comparator.compare(a.value, b.value));
+
+        MergeIterator(List<Iterator<T>> sources) {
+            sources.forEach(this::advance);
+        }
+
+        private void advance(Iterator<T> source) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+
+            advance(head.source);
+            return head.value;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.kvaster.utils.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Minimal metrics registry with prometheus text exposition format.
+ * <p>
+ * Several registries with the same metrics (e.g. one per tenant) can be rendered as one exposition, samples of
+ * each registry get constant label and each metric family is written once.
+ */
+public class MetricsRegistry {
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+
+        Metric(String name, String help, String type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        void writeHeader(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        /**
+         * @param constLabel - rendered constant label of registry, null - none
+         */
+        abstract void writeValues(StringBuilder sb, String constLabel);
+
+        List<String> key(String[] labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException("Wrong number of labels for " + name);
+            }
+
+            return Arrays.asList(labelValues);
+        }
+
+        void writeSample(StringBuilder sb, String suffix, String constLabel, List<String> labelValues, double value) {
+            sb.append(name).append(suffix);
+
+            if (constLabel != null || !labelValues.isEmpty()) {
+                sb.append('{');
+                if (constLabel != null) {
+                    sb.append(constLabel);
+                }
+                for (int i = 0; i < labelNames.length; i++) {
+                    if (i > 0 || constLabel != null) {
+                        sb.append(',');
+                    }
+                    sb.append(labelNames[i]).append("=\"");
+                    escape(sb, labelValues.get(i));
+                    sb.append('"');
+                }
+                sb.append('}');
+            }
+
+            sb.append(' ');
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                sb.append((long) value);
+            } else {
+                sb.append(value);
+            }
+            sb.append('\n');
+        }
+
+        private static void escape(StringBuilder sb, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+
+                    default:
+                        sb.append(c);
+                }
+            }
+        }
+    }
+
+    public static class Counter extends Metric {
+        private final Map<List<String>, DoubleAdder> values = new ConcurrentHashMap<>();
+
+        private Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        public void inc(String... labelValues) {
+            add(1, labelValues);
+        }
+
+        public void add(double amount, String... labelValues) {
+            values.computeIfAbsent(key(labelValues), (k) -> new DoubleAdder()).add(amount);
+        }
+
+        @Override
+        void writeValues(StringBuilder sb, String constLabel) {
+            values.forEach((k, v) -> writeSample(sb, "", constLabel, k, v.sum()));
+        }
+    }
+
+    public static class Summary extends Metric {
+        private static class Value {
+            final LongAdder count = new LongAdder();
+            final DoubleAdder sum = new DoubleAdder();
+        }
+
+        private final Map<List<String>, Value> values = new ConcurrentHashMap<>();
+
+        private Summary(String name, String help, String[] labelNames) {
+            super(name, help, "summary", labelNames);
+        }
+
+        public void observe(double value, String... labelValues) {
+            Value v = values.computeIfAbsent(key(labelValues), (k) -> new Value());
+            v.count.increment();
+            v.sum.add(value);
+        }
+
+        public void observeNanos(long startNanos, String... labelValues) {
+            observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+        }
+
+        @Override
+        void writeValues(StringBuilder sb, String constLabel) {
+            values.forEach((k, v) -> {
+                writeSample(sb, "_count", constLabel, k, v.count.sum());
+                writeSample(sb, "_sum", constLabel, k, v.sum.sum());
+            });
+        }
+    }
+
+    private static class Gauge extends Metric {
+        private final DoubleSupplier supplier;
+
+        private Gauge(String name, String help, DoubleSupplier supplier) {
+            super(name, help, "gauge", new String[0]);
+            this.supplier = supplier;
+        }
+
+        @Override
+        void writeValues(StringBuilder sb, String constLabel) {
+            writeSample(sb, "", constLabel, List.of(), supplier.getAsDouble());
+        }
+    }
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public Summary summary(String name, String help, String... labelNames) {
+        return register(new Summary(name, help, labelNames));
+    }
+
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        register(new Gauge(name, help, supplier));
+    }
+
+    private <T extends Metric> T register(T metric) {
+        if (metrics.putIfAbsent(metric.name, metric) != null) {
+            throw new IllegalArgumentException("Metric is already registered: " + metric.name);
+        }
+
+        return metric;
+    }
+
+    public String render() {
+        return render(null, Map.of("", this));
+    }
+
+    /**
+     * @param labelName  - constant label added to samples of each registry, null - no label
+     * @param registries - label value -> registry
+     */
+    public static String render(String labelName, Map<String, MetricsRegistry> registries) {
+        Map<String, Metric> headers = new TreeMap<>();
+        registries.values().forEach((r) -> r.metrics.forEach(headers::putIfAbsent));
+
+        StringBuilder sb = new StringBuilder();
+        headers.forEach((name, header) -> {
+            header.writeHeader(sb);
+            registries.forEach((value, r) -> {
+                Metric m = r.metrics.get(name);
+                if (m != null) {
+                    m.writeValues(sb, labelName == null ? null : constLabel(labelName, value));
+                }
+            });
+        });
+        return sb.toString();
+    }
+
+    private static String constLabel(String name, String value) {
+        StringBuilder sb = new StringBuilder(name).append("=\"");
+        Metric.escape(sb, value);
+        return sb.append('"').toString();
+    }
+}
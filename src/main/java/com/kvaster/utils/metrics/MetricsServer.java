@@ -0,0 +1,76 @@
+package com.kvaster.utils.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes metrics registries over http in prometheus text format at /metrics. Several registries (e.g. one per
+ * tenant with tenant label) are served by one endpoint.
+ */
+public class MetricsServer {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    private final HttpServer server;
+    private final InetSocketAddress address;
+    // label value -> registry
+    private final Map<String, MetricsRegistry> registries = new ConcurrentSkipListMap<>();
+
+    /**
+     * Port is bound on start.
+     *
+     * @param labelName - label with registry name added to each sample, null - no label (single registry)
+     */
+    public MetricsServer(String host, int port, String labelName) throws IOException {
+        address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+
+        server = HttpServer.create();
+        server.setExecutor(Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+
+        server.createContext("/metrics", (exchange) -> {
+            try {
+                byte[] data = MetricsRegistry.render(labelName, registries).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, data.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(data);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * @param name - value of registry label
+     */
+    public void addRegistry(String name, MetricsRegistry registry) {
+        registries.put(name, registry);
+    }
+
+    public void removeRegistry(String name) {
+        registries.remove(name);
+    }
+
+    public void start() throws IOException {
+        server.bind(address, 0);
+        server.start();
+        LOG.info("Metrics server started at {}", server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
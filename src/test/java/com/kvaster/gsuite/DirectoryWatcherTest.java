@@ -0,0 +1,116 @@
+package com.kvaster.gsuite;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.services.admin.directory.Directory;
+import com.kvaster.gsuite.GSuiteSyncConfig.WatchConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DirectoryWatcherTest {
+    private static final String CHANNEL_ID = "local";
+    private static final String TOKEN = "secret";
+    private static final String BODY = "{\"kind\": \"admin#directory#user\", \"primaryEmail\": \"john@mydomain.com\"}";
+
+    private final BlockingQueue<String> changed = new LinkedBlockingQueue<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService httpExecutor;
+    private DirectoryWatcher watcher;
+
+    private static WatchConfig config(String token) {
+        return new WatchConfig("127.0.0.1", 0, "http://127.0.0.1/gsuite/notify", null, null, token, CHANNEL_ID,
+                Arrays.asList("add", "delete", "update", "undelete"), 21600, 600, 60, 2000, 60000);
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        httpExecutor = Executors.newSingleThreadExecutor();
+
+        // any google call fails: local channel should not be registered in gsuite
+        Directory directory = new Directory.Builder(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                throw new AssertionError("Unexpected google call: " + method + " " + url);
+            }
+        }, new JacksonFactory(), null).setApplicationName("test").build();
+
+        watcher = new DirectoryWatcher(directory, new GoogleRetry(0, 0, 0), config(TOKEN), scheduler, httpExecutor,
+                changed::add);
+        watcher.start();
+    }
+
+    @AfterEach
+    void stop() {
+        watcher.stop();
+        scheduler.shutdownNow();
+        httpExecutor.shutdownNow();
+    }
+
+    private int post(String channelId, String token, String state) throws Exception {
+        URI uri = URI.create("http://127.0.0.1:" + watcher.getAddress().getPort() + "/gsuite/notify");
+
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("X-Goog-Channel-ID", channelId)
+                .header("X-Goog-Channel-Token", token)
+                .header("X-Goog-Resource-State", state)
+                .POST(HttpRequest.BodyPublishers.ofString(BODY))
+                .build();
+
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Test
+    void notificationFiresListener() throws Exception {
+        assertEquals(200, post(CHANNEL_ID, TOKEN, "update"));
+        assertEquals("john@mydomain.com", changed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void syncNotificationIsIgnored() throws Exception {
+        assertEquals(200, post(CHANNEL_ID, TOKEN, "sync"));
+        assertNull(changed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void invalidTokenIsRejected() throws Exception {
+        assertEquals(403, post(CHANNEL_ID, "wrong", "update"));
+        assertNull(changed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void unknownChannelIsRejected() throws Exception {
+        assertEquals(403, post("other", TOKEN, "update"));
+        assertNull(changed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void localChannelRequiresToken() {
+        Directory directory = new Directory.Builder(new MockHttpTransport(), new JacksonFactory(), null)
+                .setApplicationName("test").build();
+
+        assertThrows(IllegalArgumentException.class, () ->
+                new DirectoryWatcher(directory, new GoogleRetry(0, 0, 0), config(null), scheduler,
+                        httpExecutor, changed::add));
+    }
+}
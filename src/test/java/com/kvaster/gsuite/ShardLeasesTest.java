@@ -0,0 +1,212 @@
+package com.kvaster.gsuite;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Several node processes share leases in temporary directory, the same way as cluster with file lease store.
+ */
+class ShardLeasesTest {
+    private static final List<String> DOMAINS = Arrays.asList(
+            "a.com", "b.com", "c.com", "d.com", "e.com", "f.com"
+    );
+
+    private static final long TTL_MILLIS = 2000;
+    private static final long RENEW_MILLIS = 200;
+    private static final long WAIT_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private static final String HELD = "held ";
+
+    @TempDir
+    Path leaseDir;
+
+    private final Map<String, Process> processes = new LinkedHashMap<>();
+    private final Map<String, Thread> readers = new LinkedHashMap<>();
+    // node -> domains it syncs now
+    private final Map<String, Set<String>> held = new ConcurrentHashMap<>();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Node process: prints held domains on each change and uses them right away.
+     */
+    public static void main(String[] args) throws Exception {
+        CountDownLatch stop = new CountDownLatch(1);
+
+        ShardLeases[] leases = new ShardLeases[1];
+        leases[0] = new ShardLeases(new FileLeaseStore(new File(args[0])), args[1],
+                Arrays.asList(args[2].split(",")), TTL_MILLIS, RENEW_MILLIS, () -> {
+            Set<String> domains = leases[0].getHeld();
+            leases[0].setActive(domains);
+            System.out.println(HELD + String.join(",", domains));
+            System.out.flush();
+        }, Executors.newSingleThreadScheduledExecutor());
+
+        leases[0].start();
+
+        // parent closes stdin to stop node gracefully
+        new Thread(() -> {
+            try {
+                while (System.in.read() >= 0) {
+                    // wait for eof
+                }
+            } catch (Exception e) {
+                // stop anyway
+            }
+            stop.countDown();
+        }).start();
+
+        stop.await();
+        leases[0].stop();
+    }
+
+    @AfterEach
+    void stopNodes() {
+        processes.values().forEach(Process::destroyForcibly);
+    }
+
+    private void startNode(String node) throws Exception {
+        ProcessBuilder pb = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                ShardLeasesTest.class.getName(),
+                leaseDir.toString(), node, String.join(",", DOMAINS)
+        ).redirectErrorStream(true);
+
+        Process p = pb.start();
+        processes.put(node, p);
+
+        Thread reader = new Thread(() -> {
+            try (BufferedReader r = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith(HELD)) {
+                        String value = line.substring(HELD.length());
+                        held.put(node, value.isEmpty()
+                                ? Collections.emptySet()
+                                : new HashSet<>(Arrays.asList(value.split(","))));
+                        checkDisjoint();
+                    }
+                }
+            } catch (Exception e) {
+                // process is killed
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        readers.put(node, reader);
+    }
+
+    /**
+     * Forget domains of exited node, its buffered output is read first so they are not put back.
+     */
+    private void removeNode(String node) throws InterruptedException {
+        Thread reader = readers.get(node);
+        reader.join(WAIT_MILLIS);
+        assertFalse(reader.isAlive(), "output of " + node + " is not closed");
+        held.remove(node);
+    }
+
+    private void checkDisjoint() {
+        Set<String> seen = new HashSet<>();
+        for (Map.Entry<String, Set<String>> e : held.entrySet()) {
+            for (String domain : e.getValue()) {
+                if (!seen.add(domain)) {
+                    errors.add(domain + " is held by several nodes: " + held);
+                }
+            }
+        }
+    }
+
+    private void await(String what, Predicate<Map<String, Set<String>>> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.test(held)) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Timeout waiting for " + what + ", held: " + held);
+    }
+
+    /**
+     * @return true if given nodes hold all domains, each node holds at most its share
+     */
+    private static boolean balanced(Map<String, Set<String>> held, Set<String> nodes) {
+        int target = (DOMAINS.size() + nodes.size() - 1) / nodes.size();
+
+        Set<String> all = new HashSet<>();
+        for (String node : nodes) {
+            Set<String> domains = held.getOrDefault(node, Collections.emptySet());
+            if (domains.size() > target) {
+                return false;
+            }
+            all.addAll(domains);
+        }
+
+        return all.containsAll(DOMAINS);
+    }
+
+    @Test
+    void domainsAreSpreadAndTakenOverAfterKill() throws Exception {
+        for (String node : Arrays.asList("n1", "n2", "n3")) {
+            startNode(node);
+        }
+
+        await("domains spread across 3 nodes", (h) -> balanced(h, Set.of("n1", "n2", "n3")));
+
+        // no graceful release: domains of killed node are taken over when its leases expire
+        processes.get("n3").destroyForcibly().waitFor();
+        removeNode("n3");
+
+        await("domains taken over by 2 nodes", (h) -> balanced(h, Set.of("n1", "n2")));
+
+        assertTrue(errors.isEmpty(), errors.toString());
+    }
+
+    @Test
+    void domainsAreReleasedOnStop() throws Exception {
+        for (String node : Arrays.asList("n1", "n2")) {
+            startNode(node);
+        }
+
+        await("domains spread across 2 nodes", (h) -> balanced(h, Set.of("n1", "n2")));
+
+        Process n2 = processes.get("n2");
+        n2.getOutputStream().close();
+        assertTrue(n2.waitFor(WAIT_MILLIS, TimeUnit.MILLISECONDS), "node is not stopped");
+        removeNode("n2");
+
+        long start = System.currentTimeMillis();
+        await("domains taken by remaining node", (h) -> balanced(h, Set.of("n1")));
+        // released leases are taken without waiting for expiration
+        assertTrue(System.currentTimeMillis() - start < TTL_MILLIS,
+                "domains were taken after " + (System.currentTimeMillis() - start) + " ms");
+
+        assertTrue(errors.isEmpty(), errors.toString());
+    }
+}